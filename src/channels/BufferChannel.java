@@ -0,0 +1,33 @@
+package channels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Channel that passes messages in pooled ByteBuffers instead of fresh arrays.
+ *
+ * A buffer returned by readBuffer() belongs to the caller until it is handed
+ * back with release(). Buffers passed to send(ByteBuffer) may be reused by the
+ * caller as soon as the call returns.
+ */
+public interface BufferChannel extends Channel {
+	/**
+	 * Read a message from the channel
+	 * @return a buffer whose remaining bytes are the message,
+	 *         null if the channel was closed
+	 * @throws IOException
+	 */
+	ByteBuffer readBuffer() throws IOException;
+
+	/**
+	 * Write the remaining bytes of the buffer to the channel
+	 * @param message to write
+	 */
+	void send(ByteBuffer message);
+
+	/**
+	 * Hands a buffer returned by readBuffer() back to the channel
+	 * @param buffer
+	 */
+	void release(ByteBuffer buffer);
+}
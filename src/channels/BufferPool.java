@@ -0,0 +1,70 @@
+package channels;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of equally sized ByteBuffers, so messages can be read, decrypted and
+ * parsed without allocating a new array each time.
+ *
+ * Requests larger than the buffer size are served with unpooled buffers.
+ * Heap buffers are used by default: the JCE ciphers and stream based sockets
+ * work on the backing array directly, while direct buffers would be copied
+ * through temporary arrays.
+ */
+public class BufferPool {
+	public static final int BUFFER_SIZE = 8 * 1024;
+	public static final int MAX_POOLED  = 4096;
+
+	/** Pool shared by all channels */
+	public static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, MAX_POOLED, false);
+
+	private final int bufferSize;
+	private final boolean direct;
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+
+		// array based, so releasing a buffer allocates nothing
+		buffers = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	/**
+	 * @param size number of bytes needed
+	 * @return a cleared buffer with its limit set to size
+	 */
+	public ByteBuffer acquire(int size) {
+		ByteBuffer buf = null;
+		if (size <= bufferSize) buf = buffers.poll();
+
+		if (buf == null) {
+			int capacity = Math.max(size, bufferSize);
+			buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+
+		buf.clear();
+		buf.limit(size);
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. It must not be used afterwards.
+	 * @param buf a buffer obtained from acquire(), may be null
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null) return;
+		if (buf.capacity() != bufferSize || buf.isDirect() != direct) return;
+
+		buffers.offer(buf);
+	}
+
+	/**
+	 * @return number of buffers currently available in the pool
+	 */
+	public int available() {
+		return buffers.size();
+	}
+}
@@ -1,29 +1,147 @@
 package channels;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 
 /**
- * Applies a cipher when writing and reading
+ * Applies a cipher when writing and reading.
+ * Buffers are decrypted in place, when the underlying channel supports buffers.
+ *
+ * In AEAD mode every message is encrypted and authenticated with AES-GCM under
+ * its own nonce. Nonces are not sent: both sides count the messages of each
+ * direction, which works because messages arrive in the order they were
+ * encrypted. Callers must not send concurrently, see ClientManager.
  */
-public class CipherChannel implements Channel {
+public class CipherChannel implements BufferChannel {
+	public static final String AEAD_CIPHER = "AES/GCM/NoPadding";
+	public static final int    TAG_BITS    = 128;
+	public static final int    NONCE_SIZE  = 12;
+	private static final byte  CLIENT_TO_SERVER = (byte) 0x80; /** Flips the nonces of one direction */
+	
 	private Logger logger = Logger.getLogger(CipherChannel.class.getSimpleName());
 	
 	private Channel channel;
 	private Cipher encryptCipher, decryptCipher;
+	private BufferPool pool = BufferPool.SHARED;
+	
+	private SecretKey aeadKey; /** null, unless in AEAD mode */
+	private byte[] sendNonce, receiveNonce;
+	private long sendCount, receiveCount;
 	
 	public CipherChannel(Channel channel) {
 		this.channel = channel;
 	}
 	
+	/**
+	 * Replaces the underlying channel, e.g. when switching framing
+	 * @param channel
+	 */
+	public void setChannel(Channel channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * @param encryptionCipher initialised cipher, null to send plain messages
+	 * @param decryptionCipher initialised cipher, null to read plain messages
+	 */
 	public void setCipher(Cipher encryptionCipher, Cipher decryptionCipher) {
 		this.encryptCipher = encryptionCipher;
 		this.decryptCipher = decryptionCipher;
+		this.aeadKey = null;
+	}
+	
+	/**
+	 * Switches to AES-GCM with a new nonce per message
+	 * @param key AES key
+	 * @param iv at least NONCE_SIZE bytes, the nonces of both directions are derived from it
+	 * @param server true on the server side of the connection
+	 * @throws GeneralSecurityException if AES-GCM is not available
+	 */
+	public void setAead(SecretKey key, byte[] iv, boolean server) throws GeneralSecurityException {
+		Cipher encrypt = Cipher.getInstance(AEAD_CIPHER);
+		Cipher decrypt = Cipher.getInstance(AEAD_CIPHER);
+		
+		byte[] toServer = Arrays.copyOf(iv, NONCE_SIZE);
+		byte[] toClient = Arrays.copyOf(iv, NONCE_SIZE);
+		toServer[0] ^= CLIENT_TO_SERVER;
+		
+		this.encryptCipher = encrypt;
+		this.decryptCipher = decrypt;
+		this.sendNonce    = server ? toClient : toServer;
+		this.receiveNonce = server ? toServer : toClient;
+		this.sendCount    = 0;
+		this.receiveCount = 0;
+		this.aeadKey = key;
+	}
+	
+	/**
+	 * @return true, if messages are encrypted and authenticated with AES-GCM
+	 */
+	public boolean isAead() {
+		return aeadKey != null;
+	}
+	
+	/**
+	 * @return true, if this JVM supports AES-GCM
+	 */
+	public static boolean isAeadSupported() {
+		try {
+			Cipher.getInstance(AEAD_CIPHER);
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the cipher for the next outgoing message, null to send it plain
+	 */
+	private Cipher encryptor() throws GeneralSecurityException {
+		Cipher cipher = encryptCipher;
+		if (aeadKey != null) {
+			cipher.init(Cipher.ENCRYPT_MODE, aeadKey, new GCMParameterSpec(TAG_BITS, nonce(sendNonce, sendCount++)));
+		}
+		return cipher;
+	}
+	
+	/**
+	 * @param length length of the incoming message
+	 * @return the cipher for the next incoming message, null if it is plain
+	 */
+	private Cipher decryptor(int length) throws IOException {
+		Cipher cipher = decryptCipher;
+		if (aeadKey != null) {
+			if (length < TAG_BITS / 8) throw new IOException("Message shorter than its authentication tag");
+			try {
+				cipher.init(Cipher.DECRYPT_MODE, aeadKey, new GCMParameterSpec(TAG_BITS, nonce(receiveNonce, receiveCount++)));
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Could not decrypt message: " + e.getMessage());
+			}
+		}
+		return cipher;
+	}
+	
+	/**
+	 * @return the base nonce with the message counter xored into its last 8 bytes
+	 */
+	private static byte[] nonce(byte[] base, long count) {
+		byte[] nonce = base.clone();
+		for (int i = NONCE_SIZE - 1; i >= NONCE_SIZE - 8; i--) {
+			nonce[i] ^= (byte) count;
+			count >>>= 8;
+		}
+		return nonce;
 	}
 
 	@Override
@@ -34,7 +152,7 @@ public class CipherChannel implements Channel {
 			byte[] msg = channel.read();
 			if (msg == null) return null;
 			
-			return decryptCipher.doFinal(msg);
+			return decryptor(msg.length).doFinal(msg);
 		} catch (IllegalBlockSizeException e) {
 			throw new IOException("Could not decrypt message: " + e.getMessage());
 		} catch (BadPaddingException e) {
@@ -50,13 +168,73 @@ public class CipherChannel implements Channel {
 		}
 		
 		try {
-			channel.send(encryptCipher.doFinal(message));
-		} catch (IllegalBlockSizeException e) {
+			channel.send(encryptor().doFinal(message));
+		} catch (GeneralSecurityException e) {
 			logger.log(Level.SEVERE, "Could not encrypt message: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public ByteBuffer readBuffer() throws IOException {
+		ByteBuffer msg;
+		if (channel instanceof BufferChannel) {
+			msg = ((BufferChannel) channel).readBuffer();
+		} else {
+			byte[] read = channel.read();
+			msg = (read == null) ? null : ByteBuffer.wrap(read);
+		}
+		
+		if (msg == null || decryptCipher == null) return msg;
+		
+		Cipher cipher = decryptor(msg.remaining());
+		try {
+			int start = msg.position();
+			int length = cipher.doFinal(msg, msg.duplicate());
+			msg.position(start);
+			msg.limit(start + length);
+			return msg;
+		} catch (ShortBufferException e) {
+			throw new IOException("Could not decrypt message: " + e.getMessage());
+		} catch (IllegalBlockSizeException e) {
+			throw new IOException("Could not decrypt message: " + e.getMessage());
 		} catch (BadPaddingException e) {
+			throw new IOException("Could not decrypt message: " + e.getMessage());
+		}
+	}
+	
+	@Override
+	public void send(ByteBuffer message) {
+		if (!(channel instanceof BufferChannel)) {
+			byte[] copy = new byte[message.remaining()];
+			message.get(copy);
+			send(copy);
+			return;
+		}
+		
+		BufferChannel out = (BufferChannel) channel;
+		if (encryptCipher == null) {
+			out.send(message);
+			return;
+		}
+		
+		ByteBuffer encrypted = null;
+		try {
+			Cipher cipher = encryptor();
+			encrypted = pool.acquire(cipher.getOutputSize(message.remaining()));
+			cipher.doFinal(message, encrypted);
+			encrypted.flip();
+			out.send(encrypted);
+		} catch (GeneralSecurityException e) {
 			logger.log(Level.SEVERE, "Could not encrypt message: " + e.getMessage());
+		} finally {
+			if (encrypted != null) pool.release(encrypted);
 		}
 	}
+	
+	@Override
+	public void release(ByteBuffer buffer) {
+		if (channel instanceof BufferChannel) ((BufferChannel) channel).release(buffer);
+	}
 
 	@Override
 	public void close() throws IOException {
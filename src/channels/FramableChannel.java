@@ -0,0 +1,17 @@
+package channels;
+
+import java.io.IOException;
+
+/**
+ * A transport channel that can switch from newline terminated lines
+ * to length-prefixed binary frames.
+ */
+public interface FramableChannel extends Channel {
+	/**
+	 * Switches to length-prefixed binary frames, see FramedChannel for the format.
+	 * Frames are never Base64 encoded, so they can carry raw ciphertext.
+	 * @return a channel sending and receiving frames on the same connection
+	 * @throws IOException
+	 */
+	Channel framed() throws IOException;
+}
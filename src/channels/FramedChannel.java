@@ -0,0 +1,138 @@
+package channels;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends and receives length-prefixed binary frames.
+ *
+ * Every frame starts with a 4 byte big-endian header holding the length of the
+ * payload, with the highest bit set. Lines of a TCPChannel start with an ASCII
+ * character, so a receiver can tell frames and lines apart by their first byte.
+ * Payloads are sent as they are, without Base64 encoding.
+ *
+ * Created from a TCPChannel with TCPChannel.framed(), both share the same
+ * buffered socket streams.
+ */
+public class FramedChannel implements BufferChannel {
+	public static final int MAX_FRAME   = 1024 * 1024;
+	public static final int HEADER_SIZE = 4;
+	public static final int FRAME_FLAG  = 0x80000000;
+
+	private TCPChannel tcpChannel;
+	private InputStream in;
+	private BufferPool pool = BufferPool.SHARED;
+
+	FramedChannel(TCPChannel tcpChannel) {
+		this.tcpChannel = tcpChannel;
+		in = tcpChannel.getInputStream();
+	}
+
+	/**
+	 * @param header first 4 bytes of a frame as big-endian integer
+	 * @return true, if the header starts a frame
+	 */
+	public static boolean isFrameHeader(int header) {
+		return (header & FRAME_FLAG) != 0;
+	}
+
+	/**
+	 * @param header a frame header
+	 * @return the length of the payload following the header
+	 * @throws IOException if the header is invalid
+	 */
+	public static int payloadLength(int header) throws IOException {
+		if (!isFrameHeader(header)) throw new IOException("Not a frame header");
+
+		int length = header & ~FRAME_FLAG;
+		if (length > MAX_FRAME) throw new IOException("Frame exceeds " + MAX_FRAME + " bytes");
+		return length;
+	}
+
+	@Override
+	public byte[] read() throws IOException {
+		int length = readHeader();
+		if (length < 0) return null;
+
+		byte[] payload = new byte[length];
+		readFully(payload, 0, length);
+
+		return payload;
+	}
+
+	@Override
+	public ByteBuffer readBuffer() throws IOException {
+		int length = readHeader();
+		if (length < 0) return null;
+
+		ByteBuffer buf = pool.acquire(length);
+		readFully(buf.array(), buf.arrayOffset(), length);
+
+		return buf;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+
+	/**
+	 * @return length of the following payload, -1 at the end of the stream
+	 */
+	private int readHeader() throws IOException {
+		int b0 = in.read();
+		if (b0 < 0) return -1;
+
+		int header = (b0 << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		return payloadLength(header);
+	}
+
+	private void readFully(byte[] buf, int offset, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buf, offset + read, length - read);
+			if (n < 0) throw new EOFException("Connection closed within a frame");
+			read += n;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) throw new EOFException("Connection closed within a frame header");
+		return b;
+	}
+
+	@Override
+	public void send(byte[] message) {
+		send(message, 0, message.length);
+	}
+
+	@Override
+	public void send(ByteBuffer message) {
+		if (!message.hasArray()) {
+			byte[] copy = new byte[message.remaining()];
+			message.get(copy);
+			send(copy);
+			return;
+		}
+
+		send(message.array(), message.arrayOffset() + message.position(), message.remaining());
+		message.position(message.limit());
+	}
+
+	private void send(byte[] message, int offset, int length) {
+		ByteBuffer frame = pool.acquire(HEADER_SIZE + length);
+		frame.putInt(FRAME_FLAG | length).put(message, offset, length);
+		frame.flip();
+
+		// written or queued by the line channel, so lines and frames keep their order
+		tcpChannel.write(frame);
+	}
+
+	@Override
+	public void close() throws IOException {
+		tcpChannel.close();
+	}
+}
@@ -0,0 +1,321 @@
+package channels;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Line based channel on top of a non-blocking SocketChannel.
+ *
+ * The socket is driven by a selector loop, which calls readFrames() and flush()
+ * whenever the socket is readable or writable. Complete lines are queued until
+ * they are picked up with read(), outgoing lines are queued until the selector
+ * loop is able to write them.
+ * Uses the same wire format as TCPChannel, or FramedChannel once framed() was called.
+ * Incoming lines and frames are told apart by their first byte, so the peer may
+ * switch to frames at any time.
+ * Queued messages are kept in pooled buffers, outgoing ones are written with
+ * gathering writes. The outgoing queue is bounded, see OutboundQueue.
+ */
+public class NioChannel implements FramableChannel, BufferChannel, QueuedChannel {
+	private static final int  BUFFER_SIZE    = 4096;
+	private static final int  BATCH          = 64; /** Buffers per gathering write */
+	private static final int  MAX_FRAME      = FramedChannel.MAX_FRAME;
+	private static final ByteBuffer EOF      = ByteBuffer.allocate(0); /** Marks the end of the inbound queue */
+
+	private Logger logger = Logger.getLogger(NioChannel.class.getSimpleName());
+
+	private final SocketChannel socket;
+	private volatile SelectionKey key;
+	private final BufferPool pool;
+
+	private ByteBuffer socketBuffer;
+	private final ArrayDeque<ByteBuffer> inbound;
+	private final OutboundQueue outbound;
+	private final ByteBuffer[] batch;
+	private final Lock inLock;
+	private final Condition frameAvailable;
+	private volatile boolean closed;
+	private volatile boolean framed;
+
+	public NioChannel(SocketChannel socket) throws IOException {
+		this.socket = socket;
+		socket.configureBlocking(false);
+
+		pool = BufferPool.SHARED;
+		socketBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		inbound  = new ArrayDeque<ByteBuffer>();
+		outbound = new OutboundQueue(pool);
+		batch    = new ByteBuffer[BATCH];
+		inLock   = new ReentrantLock();
+		frameAvailable = inLock.newCondition();
+	}
+
+	/**
+	 * @param key the key under which this channel is registered with the selector
+	 */
+	public void setSelectionKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	public SocketChannel getSocketChannel() {
+		return socket;
+	}
+
+	public InetAddress getInetAddress() {
+		return socket.socket().getInetAddress();
+	}
+
+	/**
+	 * Reads available bytes from the socket and splits them into lines and frames.
+	 * Must only be called by the selector loop.
+	 * @return number of complete lines or frames queued, -1 if the end of the stream was reached
+	 * @throws IOException
+	 */
+	public int readFrames() throws IOException {
+		int n = socket.read(socketBuffer);
+		if (n < 0) {
+			endOfStream();
+			return -1;
+		}
+
+		int frames = 0;
+		int required = 0; // bytes needed to complete the current frame, if known
+		socketBuffer.flip();
+
+		int start = socketBuffer.position();
+		int limit = socketBuffer.limit();
+		while (start < limit) {
+			int end;
+			int next;
+
+			if ((socketBuffer.get(start) & 0x80) != 0) {
+				// length-prefixed frame
+				if (limit - start < FramedChannel.HEADER_SIZE) break;
+
+				int length = FramedChannel.payloadLength(socketBuffer.getInt(start));
+				if (limit - start - FramedChannel.HEADER_SIZE < length) {
+					required = FramedChannel.HEADER_SIZE + length;
+					break;
+				}
+
+				start += FramedChannel.HEADER_SIZE;
+				end = start + length;
+				next = end;
+			} else {
+				// newline terminated line
+				int newline = -1;
+				for (int i = start; i < limit; i++) {
+					if (socketBuffer.get(i) == '\n') {
+						newline = i;
+						break;
+					}
+				}
+				if (newline < 0) break;
+
+				end = newline;
+				if (end > start && socketBuffer.get(end - 1) == '\r') end--;
+				next = newline + 1;
+			}
+
+			ByteBuffer frame = pool.acquire(end - start);
+			socketBuffer.limit(end).position(start);
+			frame.put(socketBuffer);
+			frame.flip();
+			socketBuffer.limit(limit);
+			enqueue(frame);
+			frames++;
+
+			start = next;
+		}
+
+		socketBuffer.position(start);
+		socketBuffer.compact();
+
+		if (!socketBuffer.hasRemaining() || required > socketBuffer.capacity()) {
+			int capacity = Math.max(socketBuffer.capacity() * 2, required);
+			if (capacity > MAX_FRAME + FramedChannel.HEADER_SIZE) {
+				throw new IOException("Message exceeds " + MAX_FRAME + " bytes");
+			}
+
+			ByteBuffer larger = ByteBuffer.allocate(capacity);
+			socketBuffer.flip();
+			larger.put(socketBuffer);
+			socketBuffer = larger;
+		}
+
+		return frames;
+	}
+
+	private void enqueue(ByteBuffer frame) {
+		inLock.lock();
+		try {
+			inbound.add(frame);
+			frameAvailable.signal();
+		} finally {
+			inLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes queued lines to the socket, several at once, and stops listening
+	 * for writability once the queue is empty.
+	 * Must only be called by the selector loop.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		int n;
+		while ((n = outbound.peek(batch)) > 0) {
+			boolean written;
+			try {
+				socket.write(batch, 0, n);
+				written = !batch[n - 1].hasRemaining();
+			} finally {
+				Arrays.fill(batch, 0, n, null);
+				outbound.removeCompleted();
+			}
+			if (!written) return; // socket buffer is full
+		}
+
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+		// a line might have been queued while we were clearing the flag
+		if (!outbound.isEmpty()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * @return true, if read() would return without blocking
+	 */
+	public boolean hasFrame() {
+		inLock.lock();
+		try {
+			return !inbound.isEmpty();
+		} finally {
+			inLock.unlock();
+		}
+	}
+
+	/**
+	 * Called when the peer closed the connection or the socket failed.
+	 * Pending lines are still delivered, afterwards read() returns null.
+	 */
+	public void endOfStream() {
+		enqueue(EOF);
+	}
+
+	@Override
+	public ByteBuffer readBuffer() throws IOException {
+		ByteBuffer frame;
+
+		inLock.lock();
+		try {
+			while (inbound.isEmpty()) frameAvailable.await();
+
+			frame = inbound.peek();
+			// keep returning null for subsequent reads
+			if (frame != EOF) inbound.poll();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading");
+		} finally {
+			inLock.unlock();
+		}
+
+		return (frame == EOF) ? null : frame;
+	}
+
+	@Override
+	public byte[] read() throws IOException {
+		ByteBuffer frame = readBuffer();
+		if (frame == null) return null;
+
+		byte[] line = new byte[frame.remaining()];
+		frame.get(line);
+		pool.release(frame);
+
+		return line;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+
+	@Override
+	public void send(byte[] message) {
+		send(ByteBuffer.wrap(message));
+	}
+
+	@Override
+	public void send(ByteBuffer message) {
+		if (closed) return;
+
+		ByteBuffer buf;
+		if (framed) {
+			buf = pool.acquire(FramedChannel.HEADER_SIZE + message.remaining());
+			buf.putInt(FramedChannel.FRAME_FLAG | message.remaining()).put(message);
+		} else {
+			buf = pool.acquire(message.remaining() + 1);
+			buf.put(message).put((byte) '\n');
+		}
+		buf.flip();
+
+		if (!outbound.offer(buf)) {
+			if (closed) return;
+			logger.log(Level.INFO, "Closing connection to slow consumer " + getInetAddress());
+			OutboundQueue.slowConsumer();
+			try {
+				close();
+			} catch (IOException e) {}
+			return;
+		}
+
+		SelectionKey k = key;
+		if (k == null) return;
+
+		try {
+			k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+			k.selector().wakeup();
+		} catch (CancelledKeyException e) {
+			// connection closed concurrently
+		}
+	}
+
+	/**
+	 * Sends length-prefixed frames from now on.
+	 * Messages sent before are still written as lines.
+	 */
+	@Override
+	public Channel framed() {
+		framed = true;
+		return this;
+	}
+
+	@Override
+	public void setHighWaterMark(int bytes) {
+		outbound.setHighWaterMark(bytes);
+	}
+
+	@Override
+	public int getQueuedBytes() {
+		return outbound.getBytes();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		outbound.close();
+		if (key != null) key.cancel();
+		socket.close();
+		endOfStream();
+	}
+}
@@ -0,0 +1,202 @@
+package channels;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to a socket.
+ * 
+ * Messages are kept in pooled buffers, each starting at position 0. The queue is bounded
+ * by the number of queued bytes: once a message would exceed the high-water mark, it is
+ * refused and the connection should be treated as a slow consumer.
+ * Queue depths over all connections are tracked for monitoring.
+ * 
+ * Buffers handed to the writer by peek() belong to it until it calls
+ * removeCompleted(), even if the queue is closed meanwhile, so a buffer is
+ * never returned to the pool while it is still being written.
+ */
+public class OutboundQueue {
+	public static final int DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+	
+	private static final AtomicLong totalMessages = new AtomicLong();
+	private static final AtomicLong totalBytes    = new AtomicLong();
+	private static final AtomicLong slowConsumers = new AtomicLong();
+	
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+	private final Lock lock = new ReentrantLock();
+	private final BufferPool pool;
+	private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+	private int bytes;
+	private int peeked; /** Messages the writer is working on */
+	private boolean closed;
+	
+	public OutboundQueue(BufferPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * @param bytes maximum number of queued bytes
+	 */
+	public void setHighWaterMark(int bytes) {
+		this.highWaterMark = bytes;
+	}
+	
+	/**
+	 * Queues a message, the queue takes ownership of the buffer
+	 * @param message an encoded message, from position 0 to its limit
+	 * @return false, if the message would exceed the high-water mark or the queue was closed,
+	 *         the buffer is released in that case
+	 */
+	public boolean offer(ByteBuffer message) {
+		int size = message.limit();
+		
+		lock.lock();
+		try {
+			// a single large message is always accepted into an empty queue
+			if (!closed && (bytes == 0 || bytes + size <= highWaterMark)) {
+				queue.add(message);
+				bytes += size;
+				
+				totalMessages.incrementAndGet();
+				totalBytes.addAndGet(size);
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		pool.release(message);
+		return false;
+	}
+	
+	/**
+	 * Collects the first queued messages, e.g. for a gathering write.
+	 * The messages stay queued and must not be released until removeCompleted() is called.
+	 * @param batch array to fill
+	 * @return number of messages put into batch, 0 once the queue is closed
+	 */
+	public int peek(ByteBuffer[] batch) {
+		lock.lock();
+		try {
+			if (closed) return 0;
+			
+			int n = 0;
+			Iterator<ByteBuffer> it = queue.iterator();
+			while (n < batch.length && it.hasNext()) batch[n++] = it.next();
+			peeked = n;
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes and releases messages that were written completely.
+	 * Must be called by the writer after every peek(), also if writing failed.
+	 * @return true, if the queue is empty now
+	 */
+	public boolean removeCompleted() {
+		lock.lock();
+		try {
+			peeked = 0;
+			ByteBuffer head;
+			// once closed, the writer is done with the messages close() left behind
+			while ((head = queue.peek()) != null && (closed || !head.hasRemaining())) {
+				queue.poll();
+				remove(head);
+			}
+			return queue.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true, if no messages are queued
+	 */
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return queue.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true, if close() was called
+	 */
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return number of queued bytes
+	 */
+	public int getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops queued messages and refuses further ones.
+	 * Messages the writer is working on are released by its removeCompleted().
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			while (queue.size() > peeked) remove(queue.pollLast());
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void remove(ByteBuffer buf) {
+		bytes -= buf.limit();
+		totalMessages.decrementAndGet();
+		totalBytes.addAndGet(-buf.limit());
+		pool.release(buf);
+	}
+	
+	/**
+	 * Counts a connection that was closed because its queue was full
+	 */
+	public static void slowConsumer() {
+		slowConsumers.incrementAndGet();
+	}
+	
+	/**
+	 * @return messages queued over all connections
+	 */
+	public static long getTotalMessages() {
+		return totalMessages.get();
+	}
+	
+	/**
+	 * @return bytes queued over all connections
+	 */
+	public static long getTotalBytes() {
+		return totalBytes.get();
+	}
+	
+	/**
+	 * @return number of connections closed because their queue was full
+	 */
+	public static long getSlowConsumers() {
+		return slowConsumers.get();
+	}
+}
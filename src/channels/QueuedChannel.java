@@ -0,0 +1,17 @@
+package channels;
+
+/**
+ * A channel that queues outgoing messages, so senders never wait for the socket.
+ * A peer that doesn't read fast enough to stay below the high-water mark is disconnected.
+ */
+public interface QueuedChannel extends Channel {
+	/**
+	 * @param bytes maximum number of bytes waiting to be written
+	 */
+	void setHighWaterMark(int bytes);
+	
+	/**
+	 * @return number of bytes waiting to be written
+	 */
+	int getQueuedBytes();
+}
@@ -1,38 +1,201 @@
 package channels;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends and receives newline terminated lines over a socket.
+ *
+ * Given a writer, messages are queued and written by a task on the writer,
+ * several queued messages are flushed with a single write.
+ * Otherwise messages are written right away by the sending thread.
+ */
+public class TCPChannel implements FramableChannel, QueuedChannel {
+	private static final int MAX_LINE = FramedChannel.MAX_FRAME;
+	private static final int BATCH    = 64; /** Messages written per flush */
+
+	private Logger logger = Logger.getLogger(TCPChannel.class.getSimpleName());
 
-public class TCPChannel implements Channel {
 	private Socket socket;
-	private BufferedReader reader;
-	private PrintWriter writer;
-	
+	private InputStream in;
+	private OutputStream out;
+	private final Lock writeLock = new ReentrantLock();
+	private final BufferPool pool = BufferPool.SHARED;
+
+	private final Executor writer;
+	private final OutboundQueue outbound;
+	private final AtomicBoolean writing = new AtomicBoolean();
+
+	private byte[] lineBuffer = new byte[256];
+
 	public TCPChannel(Socket socket) throws IOException {
+		this(socket, null);
+	}
+
+	/**
+	 * @param socket
+	 * @param writer runs the tasks writing queued messages, null to write right away
+	 * @throws IOException
+	 */
+	public TCPChannel(Socket socket, Executor writer) throws IOException {
 		this.socket = socket;
-		
-		reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		writer = new PrintWriter(socket.getOutputStream(), true);
+		this.writer = writer;
+		this.outbound = (writer == null) ? null : new OutboundQueue(pool);
+
+		in  = new BufferedInputStream(socket.getInputStream());
+		out = new BufferedOutputStream(socket.getOutputStream());
 	}
 
 	@Override
 	public byte[] read() throws IOException {
-		String line = reader.readLine();
-		return (line == null) ? null : line.getBytes();
+		int length = 0;
+		int b;
+
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				// stream ended, return an unterminated last line
+				if (length == 0) return null;
+				break;
+			}
+
+			if (length == lineBuffer.length) {
+				if (length >= MAX_LINE) throw new IOException("Line exceeds " + MAX_LINE + " bytes");
+
+				byte[] larger = new byte[length * 2];
+				System.arraycopy(lineBuffer, 0, larger, 0, length);
+				lineBuffer = larger;
+			}
+			lineBuffer[length++] = (byte) b;
+		}
+
+		if (length > 0 && lineBuffer[length - 1] == '\r') length--;
+
+		byte[] line = new byte[length];
+		System.arraycopy(lineBuffer, 0, line, 0, length);
+		return line;
 	}
 
 	@Override
 	public void send(byte[] message) {
-		writer.println(new String(message));
+		ByteBuffer buf = pool.acquire(message.length + 1);
+		buf.put(message).put((byte) '\n');
+		buf.flip();
+		write(buf);
+	}
+
+	/**
+	 * Writes or queues an encoded message
+	 * @param message buffer from position 0 to its limit, released once written
+	 */
+	void write(ByteBuffer message) {
+		if (outbound == null) {
+			writeLock.lock();
+			try {
+				out.write(message.array(), message.arrayOffset(), message.limit());
+				out.flush();
+			} catch (IOException e) {
+				// like a PrintWriter, errors surface on the next read
+			} finally {
+				writeLock.unlock();
+				pool.release(message);
+			}
+			return;
+		}
+
+		if (!outbound.offer(message)) {
+			if (!outbound.isClosed()) slowConsumer();
+			return;
+		}
+
+		if (writing.compareAndSet(false, true)) {
+			try {
+				writer.execute(writeTask);
+			} catch (RejectedExecutionException e) {
+				writing.set(false);
+			}
+		}
+	}
+
+	private final Runnable writeTask = new Runnable() {
+		public void run() {
+			ByteBuffer[] batch = new ByteBuffer[BATCH];
+
+			do {
+				try {
+					int n;
+					while ((n = outbound.peek(batch)) > 0) {
+						writeLock.lock();
+						try {
+							for (int i = 0; i < n; i++) {
+								ByteBuffer buf = batch[i];
+								out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+								buf.position(buf.limit());
+								batch[i] = null;
+							}
+							out.flush();
+						} finally {
+							writeLock.unlock();
+							outbound.removeCompleted();
+						}
+					}
+				} catch (IOException e) {
+					// errors surface on the next read
+					outbound.close();
+				} finally {
+					writing.set(false);
+				}
+
+				// messages might have been queued after the last check
+			} while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+		}
+	};
+
+	private void slowConsumer() {
+		logger.log(Level.INFO, "Closing connection to slow consumer " + socket.getInetAddress());
+		OutboundQueue.slowConsumer();
+
+		try {
+			close();
+		} catch (IOException e) {}
+	}
+
+	@Override
+	public void setHighWaterMark(int bytes) {
+		if (outbound != null) outbound.setHighWaterMark(bytes);
+	}
+
+	@Override
+	public int getQueuedBytes() {
+		return (outbound == null) ? 0 : outbound.getBytes();
+	}
+
+	@Override
+	public Channel framed() {
+		return new FramedChannel(this);
 	}
 
 	@Override
 	public void close() throws IOException {
+		if (outbound != null) outbound.close();
 		socket.close();
-		reader.close();
-		writer.close();
+		in.close();
+		out.close();
+	}
+
+	InputStream getInputStream() {
+		return in;
 	}
+
 }
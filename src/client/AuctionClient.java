@@ -6,10 +6,13 @@ import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.PublicKey;
+import java.util.Properties;
 import java.util.Scanner;
 
 import server.service.ClientManager;
 import server.service.impl.ClientManagerImpl;
+import util.HandlerExecutors;
+import util.PropertyReader;
 import util.SecurityUtils;
 import client.timestamp.TimestampServer;
 
@@ -17,6 +20,7 @@ public class AuctionClient {
 	private static final boolean UDP_ENABLED = false; // disabled in lab 2 & 3 
 	
 	private static final String USAGE = "USAGE: host hostPort udpPort serverPublicKey clientKeyDir";
+	private static final String clientProperties = "client.properties";
 	
 	private ClientManager clManager;
 	
@@ -86,7 +90,12 @@ public class AuctionClient {
 		// open UDP socket and listen in a separate thread
 		if (UDP_ENABLED) setupUDP(udpPort);
 		
-		timestampServer = new TimestampServer(udpPort);
+		// optional, defaults are used for missing values
+		Properties props = PropertyReader.readProperties(clientProperties);
+		String executorMode = PropertyReader.getString(props, "executor", HandlerExecutors.MODE_POOL);
+		tcpProtocol.setPipelining(Boolean.parseBoolean(PropertyReader.getString(props, "pipeline", "false")));
+		
+		timestampServer = new TimestampServer(udpPort, executorMode);
 		timestampServer.start();
 		tcpProtocol.setTimestampServer(timestampServer);
 	}
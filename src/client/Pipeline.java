@@ -0,0 +1,161 @@
+package client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import server.bean.Client;
+import server.service.ClientManager;
+
+/**
+ * Sends tagged commands, so many requests can be in flight on one connection.
+ * 
+ * Every command is sent as "#<id> <command>", the server answers with the same tag,
+ * possibly out of order. There is no reader thread: whichever thread waits for a
+ * response reads from the connection and hands responses to the threads they belong to.
+ * Multi line responses arrive as one message, lines separated by newlines.
+ */
+public class Pipeline {
+	private Logger logger = Logger.getLogger(Pipeline.class.getSimpleName());
+	
+	private final ClientManager clManager;
+	private final Client server;
+	
+	private final Lock lock = new ReentrantLock();
+	private final Condition responded = lock.newCondition();
+	private final Map<String, Response> pending = new HashMap<String, Response>();
+	private int nextId;
+	private boolean reading;
+	private IOException failure;
+	
+	public Pipeline(ClientManager clManager, Client server) {
+		this.clManager = clManager;
+		this.server = server;
+	}
+	
+	/**
+	 * Sends a command without waiting for its response
+	 * @param command e.g. "!bid 1 10.00"
+	 * @return the response to wait on
+	 */
+	public Response submit(String command) {
+		Response response;
+		
+		lock.lock();
+		try {
+			nextId = (nextId + 1) % 1000000000;
+			response = new Response("#" + nextId);
+			pending.put(response.tag, response);
+		} finally {
+			lock.unlock();
+		}
+		
+		clManager.sendMessage(server, response.tag + " " + command);
+		return response;
+	}
+	
+	/**
+	 * @return number of requests still waiting for a response
+	 */
+	public int getPending() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Reads one message and delivers it, called without holding the lock
+	 */
+	private void readNext() {
+		String message;
+		try {
+			message = clManager.receiveMessage(server);
+		} catch (IOException e) {
+			lock.lock();
+			try {
+				// wake up everyone, nothing will arrive anymore
+				failure = e;
+				responded.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		
+		int space = message.indexOf(' ');
+		String tag = (space < 0) ? message : message.substring(0, space);
+		
+		lock.lock();
+		try {
+			Response response = pending.remove(tag);
+			if (response == null) {
+				logger.log(Level.FINE, "Dropped untagged message: " + message);
+			} else {
+				response.value = (space < 0) ? "" : message.substring(space + 1);
+			}
+			responded.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public class Response {
+		private final String tag;
+		private String value;
+		
+		private Response(String tag) {
+			this.tag = tag;
+		}
+		
+		/**
+		 * Blocks until the response arrived
+		 * @return the response without its tag
+		 * @throws IOException if the connection failed before the response arrived
+		 */
+		public String await() throws IOException {
+			lock.lock();
+			try {
+				while (value == null) {
+					if (failure != null) throw failure;
+					
+					if (reading) {
+						responded.awaitUninterruptibly();
+						continue;
+					}
+					
+					// nobody is reading, take over
+					reading = true;
+					lock.unlock();
+					try {
+						readNext();
+					} finally {
+						lock.lock();
+						reading = false;
+						
+						// someone else has to read now
+						responded.signalAll();
+					}
+				}
+				return value;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * @return the response split into lines
+		 * @throws IOException
+		 */
+		public String[] awaitLines() throws IOException {
+			return await().split("\n");
+		}
+	}
+}
@@ -13,6 +13,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -22,6 +23,7 @@ import java.util.logging.Logger;
 import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.encoders.Base64;
 
+import channels.CipherChannel;
 import server.bean.Client;
 import server.service.ClientManager;
 import util.SecurityUtils;
@@ -38,14 +40,18 @@ public class TCPProtocol {
     public static final String CMD_LOGIN        = "!login";
 	public static final String CMD_LOGOUT       = "!logout";
 	public static final String CMD_LIST         = "!list";
+	public static final String CMD_SEARCH       = "!search"; /** !search [limit=n] word [prefix*]... */
 	public static final String CMD_CREATE       = "!create";
 	public static final String CMD_BID          = "!bid";
 	public static final String CMD_SIGNED_BID   = "!signedBid";
+	public static final String CMD_SIGNED_BIDS  = "!signedBids"; /** several !signedBid commands, one per line */
 	public static final String CMD_GROUP_BID    = "!groupBid";
 	public static final String CMD_CONFIRM      = "!confirm";
 	public static final String CMD_EXIT         = "!end";
 	public static final String CMD_UDP          = "!udp";
 	public static final String CMD_ACTIVE_USERS = "!getClientList";
+	public static final String CMD_TICKET       = "!ticket"; /** also the response, see ResumptionTickets */
+	public static final String CMD_RESUME       = "!resume";
 	
 	public static final String CMD_GET_TIMESTAMP  = "!getTimestamp";
 	public static final String RESPONSE_TIMESTAMP = "!timestamp";
@@ -57,6 +63,22 @@ public class TCPProtocol {
 	public static final String RESPONSE_CONFIRMED  = "!confirmed";
 	public static final String RESPONSE_REJECTED   = "!rejected";
 	
+	/** Optional features, offered by the client in !login and accepted by the server in !ok */
+	public static final String CAPABILITY_FRAMED   = "framed"; /** length-prefixed frames, no Base64 */
+	public static final String CAPABILITY_PIPELINE = "pipeline"; /** tagged commands, see Pipeline */
+	public static final String CAPABILITY_RESUME   = "resume"; /** resumption tickets, see resume() */
+	public static final String CAPABILITY_AEAD     = "gcm"; /** AES-GCM per message, no HMAC for !list */
+	public static final String CAPABILITY_BATCH    = "batch"; /** stored signed bids in one !signedBids message */
+	
+	private static final boolean AEAD_SUPPORTED = CipherChannel.isAeadSupported();
+	
+	/** Labels of the values derived from a resumption ticket */
+	public static final String RESUME_KEY          = "key";
+	public static final String RESUME_IV           = "iv";
+	public static final String RESUME_SERVER_PROOF = "server";
+	public static final String RESUME_CLIENT_PROOF = "client";
+	public static final String RESUME_TICKET       = "ticket";
+	
 	private Logger logger = Logger.getLogger(TCPProtocol.class.getSimpleName());
 	
 	private ClientManager clManager;
@@ -67,9 +89,16 @@ public class TCPProtocol {
 	private String serverHost;
 	private int serverPort;
 	private Client server;
+	private boolean pipelining;
+	private Pipeline pipeline; /** null, unless the server accepted pipelining */
+	private boolean batching; /** true, if the server accepted !signedBids */
 	private Timer reconnectTimer;
 	private TimerTask reconnectTask;
 	private HashMap<String, String> signedBids; /** Key: Username, Value: 1 signedBid command per line */
+	private byte[] sessionSecret; /** Shared with the server, tickets are derived from it */
+	private String ticketId; /** null, unless the server issued a resumption ticket */
+	private byte[] ticketSecret;
+	private long ticketExpires;
 	
 	private UDPProtocol udpProtocol;
 	private TimestampServer timestampServer;
@@ -94,6 +123,13 @@ public class TCPProtocol {
 		this.udpPort = udpPort;
 	}
 	
+	/**
+	 * @param pipelining true, to offer tagged commands at the next login
+	 */
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+	
 	public void setServer(String host, int port) throws UnknownHostException, IOException {
 		this.serverHost = host;
 		this.serverPort = port;
@@ -102,6 +138,7 @@ public class TCPProtocol {
 		socket = new Socket(host, port);
 		
 		server = clManager.newClient(socket);
+		pipeline = null;
 	}
 
 	/**
@@ -127,7 +164,8 @@ public class TCPProtocol {
 		
 		try {
 			if (user != null && userKey != null) {
-				if (!handshake(user, userKey))
+				// a ticket saves the RSA handshake, fall back to it if the ticket is refused
+				if (!resume(user) && !handshake(user, userKey))
 					logout();
 				else
 					sendSignedBids();
@@ -165,6 +203,8 @@ public class TCPProtocol {
 
 	private void serverDisconnect() {
 		server = null;
+		pipeline = null;
+		batching = false;
 		serverScheduleReconnect();
 	}
 
@@ -205,7 +245,9 @@ public class TCPProtocol {
 			} else if (token.equals(CMD_LOGOUT)) {
 				logout();
 			} else if (token.equals(CMD_LIST)) {
-				listAuctions();
+				listAuctions(input.trim());
+			} else if (token.equals(CMD_SEARCH)) {
+				searchAuctions(input.trim());
 			} else if (token.equals(CMD_CREATE)) {
 				createAuction(input);
 			} else if (token.equals(CMD_BID)) {
@@ -242,6 +284,8 @@ public class TCPProtocol {
 		} finally {
 			user = null;
 			userKey = null;
+			pipeline = null;
+			dropTicket();
 			if (server != null) clManager.unsecureConnection(server);
 			if (udpProtocol != null) udpProtocol.setUser(null);
 			if (timestampServer != null) timestampServer.setSigningKey(null);
@@ -311,20 +355,22 @@ public class TCPProtocol {
 		
 		
 		/* **************************************************************************************
-		 *              Step 1: send !login <username> <tcpPort> <clientChallenge>
+		 *       Step 1: send !login <username> <tcpPort> <clientChallenge> [capabilities]
 		 * **************************************************************************************/
 		int tcpPort = timestampServer.getPort();
 		
 		clientChallenge = SecurityUtils.generateNumber(32);
 		String clientChallenge64 = new String(Base64.encode(clientChallenge));
 		
-		message = String.format("%s %s %d %s", CMD_LOGIN, username, tcpPort, clientChallenge64);
+		message = String.format("%s %s %d %s %s", CMD_LOGIN, username, tcpPort, clientChallenge64,
+								joinCapabilities(offeredCapabilities()));
 		msg = SecurityUtils.encryptRSA(message.getBytes(), serverKey);
 		
 		server.getChannel().send(msg);
 		
 		/* **************************************************************************************
 		 * Step 2: receive !ok <client-challenge> <server-challenge> <secret-key> <iv-parameter>
+		 *                     [capabilities]
 		 * **************************************************************************************/
 		msg = server.getChannel().read();
 		if (new String(msg).equals(RESPONSE_FAIL)) return false;
@@ -346,24 +392,207 @@ public class TCPProtocol {
 		String iv64 = tokens[4];
 		
 		// establish encrypted channel
-		clManager.secureConnection(server, secretKey64.getBytes(), iv64.getBytes());
+		secureConnection(tokens, 5, secretKey64.getBytes(), iv64.getBytes());
+		sessionSecret = Base64.decode(secretKey64);
+		
+		// server accepted frames, everything after step 2 is framed
+		if (hasCapability(tokens, 5, CAPABILITY_FRAMED)) clManager.enableFraming(server);
+		pipeline = hasCapability(tokens, 5, CAPABILITY_PIPELINE) ? new Pipeline(clManager, server) : null;
+		batching = hasCapability(tokens, 5, CAPABILITY_BATCH);
 		
 		/* **************************************************************************************
 		 *                              Step 3: send <server-challenge>
 		 * **************************************************************************************/
 		server.getChannel().send(serverChallenge.getBytes());
 		
+		if (hasCapability(tokens, 5, CAPABILITY_RESUME)) requestTicket();
+		
 		return true;
 	}
+	
+	private List<String> offeredCapabilities() {
+		List<String> capabilities = new ArrayList<String>();
+		capabilities.add(CAPABILITY_FRAMED);
+		if (pipelining) capabilities.add(CAPABILITY_PIPELINE);
+		// the server only resumes sessions over AES-GCM
+		if (AEAD_SUPPORTED) capabilities.add(CAPABILITY_RESUME);
+		if (AEAD_SUPPORTED) capabilities.add(CAPABILITY_AEAD);
+		capabilities.add(CAPABILITY_BATCH);
+		return capabilities;
+	}
+	
+	/**
+	 * Uses AES-GCM if the server accepted it, the old cipher otherwise
+	 * @param tokens tokens of the !ok message
+	 * @param index index of the capabilities token
+	 */
+	private void secureConnection(String[] tokens, int index, byte[] secret64, byte[] iv64) throws IOException {
+		if (!hasCapability(tokens, index, CAPABILITY_AEAD)) {
+			clManager.secureConnection(server, secret64, iv64);
+		} else if (!clManager.secureConnectionAead(server, secret64, iv64, false)) {
+			throw new IOException("Could not set up the accepted AES-GCM channel");
+		}
+	}
+	
+	/**
+	 * Asks for a ticket to resume the session after a reconnect
+	 */
+	private void requestTicket() throws IOException {
+		dropTicket();
+		
+		clManager.sendMessage(server, CMD_TICKET);
+		String[] tokens = clManager.receiveMessage(server).split(" ");
+		
+		// !ticket <id> <lifetime in seconds>
+		if (tokens.length < 3 || !tokens[0].equals(CMD_TICKET)) return;
+		try {
+			ticketExpires = System.currentTimeMillis() + Long.parseLong(tokens[2]) * 1000;
+		} catch (NumberFormatException e) {
+			return;
+		}
+		ticketSecret = ticketSecret(sessionSecret, tokens[1]);
+		ticketId = tokens[1];
+	}
+	
+	private void dropTicket() {
+		ticketId = null;
+		ticketSecret = null;
+	}
+	
+	/**
+	 * Sets up a new session from a resumption ticket, without RSA.
+	 * The ticket can be used once, a new one is requested afterwards.
+	 * @param username
+	 * @return true if the session was resumed, false if there is no ticket or the server refused it
+	 * @throws IOException if the server could not prove that it knows the ticket
+	 */
+	private boolean resume(String username) throws IOException {
+		if (ticketId == null || ticketExpires < System.currentTimeMillis() || !AEAD_SUPPORTED) return false;
+		
+		String id = ticketId;
+		byte[] secret = ticketSecret;
+		dropTicket();
+		
+		/* **************************************************************************************
+		 *    Step 1: send !resume <ticket-id> <client-nonce> <tcpPort> [capabilities]
+		 * **************************************************************************************/
+		int tcpPort = timestampServer.getPort();
+		byte[] clientNonce = SecurityUtils.generateNumber(32);
+		
+		clManager.sendMessage(server, String.format("%s %s %s %d %s", CMD_RESUME, id,
+													new String(Base64.encode(clientNonce)), tcpPort,
+													joinCapabilities(offeredCapabilities())));
+		
+		/* **************************************************************************************
+		 *         Step 2: receive !ok <server-nonce> <server-proof> [capabilities]
+		 * **************************************************************************************/
+		String[] tokens = clManager.receiveMessage(server).split(" ");
+		if (tokens.length < 3 || !tokens[0].equals(RESPONSE_SUCCESS)) return false;
+		
+		byte[] serverNonce = Base64.decode(tokens[1]);
+		byte[] serverProof = resumptionKey(secret, RESUME_SERVER_PROOF, clientNonce, serverNonce);
+		if (!Arrays.areEqual(serverProof, Base64.decode(tokens[2]))) {
+			throw new IOException("Server does not know the resumption ticket");
+		}
+		
+		byte[] key = resumptionKey(secret, RESUME_KEY, clientNonce, serverNonce);
+		byte[] iv = new byte[16];
+		System.arraycopy(resumptionKey(secret, RESUME_IV, clientNonce, serverNonce), 0, iv, 0, iv.length);
+		
+		// resumed sessions always use AES-GCM
+		if (!hasCapability(tokens, 3, CAPABILITY_AEAD) || !clManager.secureConnectionAead(server, Base64.encode(key), Base64.encode(iv), false)) {
+			throw new IOException("Could not set up AES-GCM for the resumed session");
+		}
+		sessionSecret = key;
+		if (hasCapability(tokens, 3, CAPABILITY_FRAMED)) clManager.enableFraming(server);
+		pipeline = hasCapability(tokens, 3, CAPABILITY_PIPELINE) ? new Pipeline(clManager, server) : null;
+		batching = hasCapability(tokens, 3, CAPABILITY_BATCH);
+		
+		/* **************************************************************************************
+		 *                           Step 3: send <client-proof>
+		 * **************************************************************************************/
+		byte[] clientProof = resumptionKey(secret, RESUME_CLIENT_PROOF, clientNonce, serverNonce);
+		server.getChannel().send(Base64.encode(clientProof));
+		
+		if (hasCapability(tokens, 3, CAPABILITY_RESUME)) requestTicket();
+		
+		return true;
+	}
+	
+	/**
+	 * @param secret secret of a resumption ticket
+	 * @param label one of the RESUME_ labels
+	 * @param clientNonce
+	 * @param serverNonce
+	 * @return value derived from the ticket for one session
+	 */
+	public static byte[] resumptionKey(byte[] secret, String label, byte[] clientNonce, byte[] serverNonce) {
+		return SecurityUtils.deriveKey(secret, label, clientNonce, serverNonce);
+	}
+	
+	/**
+	 * The ticket secret is never sent, server and client derive it from the
+	 * secret of the session the ticket was issued in.
+	 * @param sessionSecret
+	 * @param ticketId Base64 encoded id of the ticket
+	 * @return secret of the ticket
+	 */
+	public static byte[] ticketSecret(byte[] sessionSecret, String ticketId) {
+		return SecurityUtils.deriveKey(sessionSecret, RESUME_TICKET, ticketId.getBytes());
+	}
 
-	private boolean listAuctions() throws IOException {
-		return listAuctions(true);
+	/**
+	 * @param tokens tokens of a !login or !ok message
+	 * @param index index of the optional capabilities token
+	 * @param capability
+	 * @return true, if the capability is listed
+	 */
+	public static boolean hasCapability(String[] tokens, int index, String capability) {
+		if (tokens.length <= index) return false;
+		
+		for (String c : tokens[index].split(",")) {
+			if (c.equals(capability)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param capabilities
+	 * @return the capabilities token of a !login or !ok message
+	 */
+	public static String joinCapabilities(List<String> capabilities) {
+		StringBuilder sb = new StringBuilder();
+		for (String c : capabilities) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Sends a command, tagged if the server accepted pipelining
+	 * @param command
+	 * @return the lines of the response
+	 */
+	private Responses request(String command) {
+		if (pipeline == null) {
+			clManager.sendMessage(server, command);
+			return new Responses(null);
+		}
+		return new Responses(pipeline.submit(command));
+	}
+	
+	/**
+	 * @param command !list, optionally with paging arguments like limit=20 sort=end
+	 */
+	private boolean listAuctions(String command) throws IOException {
+		return listAuctions(command, true);
 	}
 	
-	private boolean listAuctions(boolean retry) throws IOException {
-		clManager.sendMessage(server, CMD_LIST);
+	private boolean listAuctions(String command, boolean retry) throws IOException {
+		Responses response = request(command);
 		
-		String status = clManager.receiveMessage(server);
+		String status = response.next();
 		if (status == null) return false;
 		
 		if (!status.startsWith(RESPONSE_SUCCESS)) {
@@ -371,22 +600,26 @@ public class TCPProtocol {
 			return true;
 		}
 
-		String header = clManager.receiveMessage(server);
-		int auctions = Integer.valueOf(header);
+		// the count, followed by the cursor of the next page if there is one
+		String header = response.next();
+		String[] counts = header.split(" ");
+		int auctions = Integer.valueOf(counts[0]);
 		StringBuilder listBuilder = new StringBuilder(); // whole list output without either count or HMAC
 		
 		for (int i = 0; i < auctions; i++) {
-			String line = clManager.receiveMessage(server);
+			String line = response.next();
 			listBuilder.append(String.format("%s%n", line));
 		}
 		
 		String wholeList = listBuilder.toString();
 		String wholeMessage = String.format("%s%n%s%n%s", status, header, wholeList);
 		
-		if (isLoggedIn() && !verifyHmac(wholeMessage)) {
+		// AES-GCM already authenticated the response
+		boolean authenticated = server.getCipherChannel().isAead();
+		if (isLoggedIn() && !authenticated && !verifyHmac(wholeMessage, response.next())) {
 			if (retry) {
 				System.out.println("Failed to verify the response from the server. Retry...");
-				return listAuctions(false);
+				return listAuctions(command, false);
 			} else {
 				System.out.println("Verification failed again. Abort.");
 				return true;
@@ -394,16 +627,39 @@ public class TCPProtocol {
 		}
 		
 		System.out.print(wholeList);
+		if (counts.length > 1) System.out.println("More with cursor=" + counts[1]);
 		return true;
 	}
 	
-	private boolean verifyHmac(String message) {
+	/**
+	 * @param command !search with the words to look for
+	 */
+	private void searchAuctions(String command) throws IOException {
+		Responses response = request(command);
+		
+		String status = response.next();
+		if (status == null) return;
+		
+		if (!status.startsWith(RESPONSE_SUCCESS)) {
+			System.out.println("Search failed. Usage: " + CMD_SEARCH + " [limit=n] word [prefix*]...");
+			return;
+		}
+		
+		int auctions = Integer.valueOf(response.next());
+		if (auctions == 0) System.out.println("No auctions found.");
+		for (int i = 0; i < auctions; i++) {
+			System.out.println(response.next());
+		}
+	}
+	
+	private boolean verifyHmac(String message, String hmac64) {
+		if (hmac64 == null) return false;
+		
 		try {
 			String hmacKeyPath = clientKeyDir + user + ".key";
 			Key hmacKey = SecurityUtils.getClientKey(hmacKeyPath);
 			byte[] hmac = SecurityUtils.hmacSHA256(message.getBytes(), hmacKey);
 			
-			String hmac64 = clManager.receiveMessage(server);
 			byte[] serverHmac = Base64.decode(hmac64);
 
 			return Arrays.areEqual(hmac, serverHmac);
@@ -469,9 +725,7 @@ public class TCPProtocol {
 		for (int i = 3; i < tokens.length; i++)
 			name += " " + tokens[i];
 		
-		clManager.sendMessage(server, input);
-		
-		String response = clManager.receiveMessage(server);
+		String response = request(input).next();
 		if (response == null) return false;
 		
 		if (response.startsWith(RESPONSE_FAIL)) {
@@ -525,10 +779,9 @@ public class TCPProtocol {
 	private void onlineBid(int id, double bid) throws IOException {
 		// send bid to server
 		String message = String.format("%s %d %f", CMD_BID, id, bid);
-		clManager.sendMessage(server, message);
 		
 		// receive response
-		String response = clManager.receiveMessage(server);
+		String response = request(message).next();
 		if (response == null) return;
 		if (response.equals(RESPONSE_NO_AUCTION)) {
 			System.out.println("No auction with that id exists");
@@ -708,7 +961,7 @@ public class TCPProtocol {
 		}
 	}
 	
-	private void sendSignedBids() {
+	private void sendSignedBids() throws IOException {
 		synchronized (signedBids) {
 			String saved = signedBids.get(user);
 			if (saved == null) return;
@@ -716,8 +969,17 @@ public class TCPProtocol {
 			String failed = "";
 			
 			String[] bids = saved.split("\n");
-			for (String bid : bids) {
-				clManager.sendMessage(server, bid);
+			if (batching && bids.length > 1) {
+				// the server checks the signatures of all bids at once
+				clManager.sendMessage(server, CMD_SIGNED_BIDS + " " + bids.length + "\n" + saved);
+				String[] result = clManager.receiveMessage(server).split(" ");
+				if (result.length == 3 && result[0].equals(RESPONSE_SUCCESS)) {
+					System.out.println(String.format("Signed bids: %s accepted, %s rejected", result[1], result[2]));
+				}
+			} else {
+				for (String bid : bids) {
+					clManager.sendMessage(server, bid);
+				}
 			}
 			
 			if (failed.equals("")) failed = null;
@@ -739,4 +1001,31 @@ public class TCPProtocol {
 	public String getUsername() {
 		return user;
 	}
+	
+	/**
+	 * Lines of a response. The server may send several lines in one message,
+	 * always does so for pipelined requests.
+	 */
+	private class Responses {
+		private final Pipeline.Response pipelined;
+		private String[] lines;
+		private int next;
+		
+		public Responses(Pipeline.Response pipelined) {
+			this.pipelined = pipelined;
+		}
+		
+		public String next() throws IOException {
+			if (pipelined != null) {
+				if (lines == null) lines = pipelined.awaitLines();
+				return (next < lines.length) ? lines[next++] : null;
+			}
+			
+			if (lines == null || next == lines.length) {
+				lines = clManager.receiveMessage(server).split("\n");
+				next = 0;
+			}
+			return lines[next++];
+		}
+	}
 }
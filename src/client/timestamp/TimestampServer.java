@@ -7,12 +7,24 @@ import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 
+import util.HandlerExecutors;
+
 public class TimestampServer extends Thread {
 	private ServerSocket socket;
 	ArrayList<Socket> connections;
 	private PrivateKey key;
+	private String executorMode;
 	
 	public TimestampServer(int port) {
+		this(port, HandlerExecutors.MODE_POOL);
+	}
+	
+	/**
+	 * @param port the port to listen on
+	 * @param executorMode how handlers are run, see HandlerExecutors
+	 */
+	public TimestampServer(int port, String executorMode) {
+		this.executorMode = executorMode;
 		try {
 			socket = new ServerSocket(port);
 			connections = new ArrayList<Socket>();
@@ -25,7 +37,7 @@ public class TimestampServer extends Thread {
 	public void run() {
 		if (socket == null) return;
 		
-		ExecutorService executor = java.util.concurrent.Executors.newCachedThreadPool();
+		ExecutorService executor = HandlerExecutors.newExecutor(executorMode);
 		
 		while (true) {
 			try {
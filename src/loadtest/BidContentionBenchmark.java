@@ -0,0 +1,161 @@
+package loadtest;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import server.bean.Auction;
+import server.bean.Client;
+import server.bean.Group;
+import server.bean.User;
+import server.service.UserManager;
+import server.service.impl.AnalyticsServerWrapper;
+import server.service.impl.AuctionManagerImpl;
+
+/**
+ * Many threads bidding on a single auction.
+ *
+ * Compares AuctionManager.bid(), which replaces the highest bid by
+ * compare-and-set and notifies the overbid user afterwards, with the same
+ * path run under a lock on the auction, so bidders wait for each other's
+ * notification. Notifications are
+ * simulated by busy waiting for a configurable time, like a UDP send.
+ *
+ * USAGE: java loadtest.BidContentionBenchmark [threads] [seconds] [notifyMicros]
+ */
+public class BidContentionBenchmark {
+	private final int threads;
+	private final long durationNanos;
+	private final long notifyNanos;
+
+	private final AtomicLong notifications = new AtomicLong();
+
+	public BidContentionBenchmark(int threads, int seconds, int notifyMicros) {
+		this.threads = threads;
+		this.durationNanos = seconds * 1000000000L;
+		this.notifyNanos = notifyMicros * 1000L;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		int notifyMicros = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+		BidContentionBenchmark benchmark = new BidContentionBenchmark(threads, seconds, notifyMicros);
+		System.out.println(String.format("%d threads, %d s, notification %d us", threads, seconds, notifyMicros));
+		System.out.println("variant      bids/s    accepted/s  notifications/s");
+
+		benchmark.run("locked", benchmark.new Locked());
+		benchmark.run("cas", benchmark.new Cas());
+	}
+
+	private void run(String name, final Bidder bidder) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong bids = new AtomicLong();
+		final AtomicLong accepted = new AtomicLong();
+		notifications.set(0);
+
+		for (int t = 0; t < threads; t++) {
+			// two users per thread, so a thread overbidding itself still notifies
+			final User[] users = { newUser("bidder" + t + "a"), newUser("bidder" + t + "b") };
+
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					long n = 0, ok = 0;
+					try {
+						start.await();
+						long end = System.nanoTime() + durationNanos;
+						while (System.nanoTime() < end) {
+							if (bidder.bid(users[(int) (n & 1)])) ok++;
+							n++;
+						}
+					} catch (InterruptedException e) {
+						// count what was done
+					}
+					bids.addAndGet(n);
+					accepted.addAndGet(ok);
+					done.countDown();
+				}
+			});
+			thread.start();
+		}
+
+		start.countDown();
+		done.await();
+
+		double seconds = durationNanos / 1e9;
+		System.out.println(String.format("%-10s %10.0f %12.0f %16.0f", name,
+				bids.get() / seconds, accepted.get() / seconds, notifications.get() / seconds));
+	}
+
+	private interface Bidder {
+		/**
+		 * Bids a little more than the current highest bid
+		 * @return true, if the bid was accepted
+		 */
+		boolean bid(User user);
+	}
+
+	/**
+	 * The server's bid path, serialised by a lock held until the notification is sent
+	 */
+	private class Locked extends Cas {
+		private final Lock lock = new ReentrantLock();
+
+		@Override
+		public boolean bid(User user) {
+			lock.lock();
+			try {
+				return super.bid(user);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * The server's bid path
+	 */
+	private class Cas implements Bidder {
+		private final AuctionManagerImpl manager = new AuctionManagerImpl(new Notifier(), null,
+				new AnalyticsServerWrapper(null), new Group());
+		private final Auction auction = manager.createAuction(newUser("owner"), "benchmark", 3600);
+
+		public boolean bid(User user) {
+			return manager.bid(user, auction, auction.getHighestBid() + 1);
+		}
+	}
+
+	private static User newUser(String name) {
+		User user = new User();
+		user.setName(name);
+		return user;
+	}
+
+	private void sendNotification(User user) {
+		notifications.incrementAndGet();
+
+		long end = System.nanoTime() + notifyNanos;
+		while (System.nanoTime() < end) {}
+	}
+
+	/**
+	 * Simulates sending notifications, does not manage any users
+	 */
+	private class Notifier implements UserManager {
+		public void postMessage(User user, String message) {
+			sendNotification(user);
+		}
+
+		public void sendMessage(User user, String message) {}
+		public void disconnect(User user) {}
+		public void logout(User user) {}
+		public User login(String username, Client client) { return null; }
+		public boolean isLoggedIn(String username) { return false; }
+		public Collection<User> getUsers() { return Collections.emptyList(); }
+	}
+}
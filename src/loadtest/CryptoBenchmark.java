@@ -0,0 +1,147 @@
+package loadtest;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import util.CryptoContext;
+import util.SecurityUtils;
+
+/**
+ * Compares the crypto operations of SecurityUtils, which reuse per-thread
+ * instances from CryptoContext, with looking up a new instance for every call.
+ *
+ * Every operation is run for a number of warm-up rounds first, then timed.
+ * Reports the average time per operation for both variants.
+ *
+ * USAGE: java loadtest.CryptoBenchmark [iterations]
+ */
+public class CryptoBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+
+	private final int iterations;
+	private final KeyPair rsaKeys;
+	private final Key hmacKey;
+	private final byte[] message;
+	private final byte[] list;
+
+	public CryptoBenchmark(int iterations) throws Exception {
+		this.iterations = iterations;
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		rsaKeys = generator.generateKeyPair();
+		hmacKey = SecurityUtils.getSecretKey(256);
+
+		message = new byte[190];
+		list = new byte[8192];
+		new SecureRandom().nextBytes(list);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+		if (Security.getProvider("BC") == null) Security.addProvider(new BouncyCastleProvider());
+
+		CryptoBenchmark benchmark = new CryptoBenchmark(iterations);
+		System.out.println(String.format("%d iterations", iterations));
+		System.out.println("operation          lookup[us]  context[us]");
+
+		benchmark.compare("hmac 8k", benchmark.hmacLookup, benchmark.hmacContext);
+		benchmark.compare("random 32", benchmark.randomLookup, benchmark.randomContext);
+		benchmark.compare("rsa encrypt", benchmark.encryptLookup, benchmark.encryptContext);
+		benchmark.compare("sign+verify", benchmark.signLookup, benchmark.signContext);
+	}
+
+	private void compare(String name, Operation lookup, Operation context) throws Exception {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			time(lookup);
+			time(context);
+		}
+
+		System.out.println(String.format("%-18s %10.2f  %11.2f", name, time(lookup), time(context)));
+	}
+
+	/**
+	 * @return average microseconds per operation
+	 */
+	private double time(Operation op) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) op.run();
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	private final Operation hmacLookup = new Operation() {
+		public void run() throws Exception {
+			Mac mac = Mac.getInstance(CryptoContext.HMAC_ALGORITHM);
+			mac.init(hmacKey);
+			mac.update(list);
+			mac.doFinal();
+		}
+	};
+
+	private final Operation hmacContext = new Operation() {
+		public void run() {
+			SecurityUtils.hmacSHA256(hmacKey, list);
+		}
+	};
+
+	private final Operation randomLookup = new Operation() {
+		public void run() {
+			new SecureRandom().nextBytes(new byte[32]);
+		}
+	};
+
+	private final Operation randomContext = new Operation() {
+		public void run() {
+			SecurityUtils.generateNumber(32);
+		}
+	};
+
+	private final Operation encryptLookup = new Operation() {
+		public void run() throws Exception {
+			Cipher cipher = Cipher.getInstance(CryptoContext.RSA_CIPHER);
+			cipher.init(Cipher.ENCRYPT_MODE, rsaKeys.getPublic());
+			cipher.doFinal(message);
+		}
+	};
+
+	private final Operation encryptContext = new Operation() {
+		public void run() {
+			SecurityUtils.encryptRSA(message, rsaKeys.getPublic());
+		}
+	};
+
+	private final Operation signLookup = new Operation() {
+		public void run() throws Exception {
+			Signature s = Signature.getInstance(CryptoContext.SIGNATURE_ALGO);
+			s.initSign(rsaKeys.getPrivate());
+			s.update(message);
+			byte[] signature = s.sign();
+
+			s = Signature.getInstance(CryptoContext.SIGNATURE_ALGO);
+			s.initVerify(rsaKeys.getPublic());
+			s.update(message);
+			s.verify(signature);
+		}
+	};
+
+	private final Operation signContext = new Operation() {
+		public void run() {
+			byte[] signature = SecurityUtils.sign(message, rsaKeys.getPrivate());
+			SecurityUtils.verify(message, signature, rsaKeys.getPublic());
+		}
+	};
+}
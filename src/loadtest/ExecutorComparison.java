@@ -0,0 +1,169 @@
+package loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import util.HandlerExecutors;
+import channels.Channel;
+import channels.TCPChannel;
+
+/**
+ * Compares the handler executor modes of the auction server.
+ *
+ * Opens many concurrent sessions against a local server whose handlers block on
+ * TCPChannel.read() like the ConnectionHandler does, and lets every session
+ * send a number of requests. Reports throughput and the peak number of
+ * platform threads for each mode.
+ *
+ * USAGE: java loadtest.ExecutorComparison [sessions] [requestsPerSession]
+ */
+public class ExecutorComparison {
+	private static final int DRIVER_THREADS = 16;
+
+	private final int sessions;
+	private final int requests;
+
+	public ExecutorComparison(int sessions, int requests) {
+		this.sessions = sessions;
+		this.requests = requests;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+		if (!HandlerExecutors.virtualThreadsSupported()) {
+			System.out.println("Note: this JVM has no virtual threads, 'virtual' falls back to the pool.");
+		}
+
+		ExecutorComparison comparison = new ExecutorComparison(sessions, requests);
+		System.out.println(String.format("%d sessions, %d requests each", sessions, requests));
+		System.out.println("mode     time[ms]  requests/s  peak platform threads");
+
+		// first run warms up the JIT
+		comparison.run(HandlerExecutors.MODE_POOL);
+
+		comparison.print(HandlerExecutors.MODE_POOL);
+		comparison.print(HandlerExecutors.MODE_VIRTUAL);
+	}
+
+	private void print(String mode) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		long millis = run(mode);
+		double throughput = sessions * (double) requests * 1000 / Math.max(millis, 1);
+
+		System.out.println(String.format("%-8s %8d  %10.0f  %d", mode, millis, throughput, threads.getPeakThreadCount()));
+	}
+
+	/**
+	 * @return elapsed time in milliseconds
+	 */
+	private long run(String mode) throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0);
+		final ExecutorService executor = HandlerExecutors.newExecutor(mode);
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						executor.execute(new EchoHandler(new TCPChannel(serverSocket.accept())));
+					} catch (IOException e) {
+						break; // socket closed
+					}
+				}
+			}
+		});
+		acceptor.start();
+
+		// connect every session up front, so they all are alive at the same time
+		List<Channel> channels = new ArrayList<Channel>();
+		for (int i = 0; i < sessions; i++) {
+			channels.add(new TCPChannel(new Socket("localhost", serverSocket.getLocalPort())));
+		}
+
+		long start = System.currentTimeMillis();
+
+		CountDownLatch done = new CountDownLatch(DRIVER_THREADS);
+		for (int t = 0; t < DRIVER_THREADS; t++) {
+			List<Channel> own = new ArrayList<Channel>();
+			for (int i = t; i < channels.size(); i += DRIVER_THREADS) own.add(channels.get(i));
+
+			new Thread(new Driver(own, done)).start();
+		}
+		done.await();
+
+		long millis = System.currentTimeMillis() - start;
+
+		for (Channel c : channels) c.close();
+		serverSocket.close();
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		return millis;
+	}
+
+	/**
+	 * Sends requests round robin over its sessions
+	 */
+	private class Driver implements Runnable {
+		private final List<Channel> channels;
+		private final CountDownLatch done;
+
+		public Driver(List<Channel> channels, CountDownLatch done) {
+			this.channels = channels;
+			this.done = done;
+		}
+
+		public void run() {
+			byte[] request = "!bid 1 1.00".getBytes();
+			try {
+				for (int r = 0; r < requests; r++) {
+					for (Channel c : channels) {
+						c.send(request);
+						c.read();
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Session failed: " + e.getMessage());
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Blocks on read() for the whole session, like the ConnectionHandler
+	 */
+	private static class EchoHandler implements Runnable {
+		private final Channel channel;
+
+		public EchoHandler(Channel channel) {
+			this.channel = channel;
+		}
+
+		public void run() {
+			byte[] msg;
+			try {
+				while ((msg = channel.read()) != null) {
+					channel.send(msg);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -22,6 +22,7 @@ public class LoadTester {
 		int auctionDuration = Integer.parseInt(props.getProperty("auctionDuration"));
 		int updateInterval = Integer.parseInt(props.getProperty("updateIntervalSec"));
 		int bpm = Integer.parseInt(props.getProperty("bidsPerMin"));
+		boolean pipelined = Boolean.parseBoolean(PropertyReader.getString(props, "pipelined", "false"));
 		
 		testSubscriber = new TestSubscriber(analyticsBindingName);
 
@@ -29,6 +30,7 @@ public class LoadTester {
 		threads = new ArrayList<TestClient>();
 		for (int clnr = 0; clnr < clients; clnr++) {
 			TestClient t = new TestClient(host, port, apm, auctionDuration, updateInterval, bpm, clnr, time);
+			t.setPipelined(pipelined);
 			threads.add(t);
 		}
 	}
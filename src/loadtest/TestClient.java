@@ -3,6 +3,7 @@ package loadtest;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
@@ -10,7 +11,9 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import server.bean.Client;
+import server.service.ClientManager;
 import server.service.impl.ClientManagerImpl;
+import client.Pipeline;
 import client.TCPProtocol;
 
 /**
@@ -19,12 +22,18 @@ import client.TCPProtocol;
  */
 public class TestClient extends Thread {
 	private static final boolean DEBUG = false;
+	private static final int MAX_IN_FLIGHT = 16; /** Bids sent before waiting for the oldest response */
+	private static final String LIST_COMMAND = "!list sort=end limit=100"; /** Only the auctions ending first are bid on */
 	
 	private String host;
 	private int port;
 	private int auctionsPerMin, auctionDuration, updateInterval, bidsPerMin, clientNr;
 	private long startTime;
 	private Client client;
+	private ClientManager clManager;
+	private boolean pipelined;
+	private Pipeline pipeline;
+	private ArrayDeque<Pipeline.Response> bidsInFlight;
 	private int auctionCount = 0;
 	private Random rand;
 	
@@ -46,6 +55,14 @@ public class TestClient extends Thread {
 		
 		rand = new Random(clientNr * startTime);
 		activeAuctions = new ArrayList<Integer>();
+		bidsInFlight = new ArrayDeque<Pipeline.Response>();
+	}
+	
+	/**
+	 * @param pipelined true, to send tagged commands without waiting for each response
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
 	}
 	
 	public void run() {
@@ -60,9 +77,11 @@ public class TestClient extends Thread {
 			return;
 		}
 		
-		client = new ClientManagerImpl().newClient(sock);
+		clManager = new ClientManagerImpl();
+		client = clManager.newClient(sock);
 		
 		login();
+		if (pipelined) pipeline = new Pipeline(clManager, client);
 		
 		// starting timer
 		createTimer = new Timer();
@@ -107,7 +126,7 @@ public class TestClient extends Thread {
 	
 	
 	/**
-	 * Sends !list and looks at the answer.
+	 * Fetches the first page of !list and looks at the answer.
 	 */
 	public void updateActiveAuctions() {
 		if (DEBUG) System.out.println("\nUpdating Auctions list");
@@ -115,10 +134,23 @@ public class TestClient extends Thread {
 		synchronized (activeAuctions) {
 			activeAuctions.clear();
 		}
+		
+		if (pipeline != null) {
+			String[] lines = await(pipeline.submit(LIST_COMMAND));
+			if (lines == null || !lines[0].equals(TCPProtocol.RESPONSE_SUCCESS)) return;
+			
+			// !ok, count and cursor, auctions
+			int auctions = Integer.parseInt(lines[1].split(" ")[0]);
+			synchronized (activeAuctions) {
+				for (int i = 0; i < auctions; i++) activeAuctions.add(parseAuctionId(lines[2 + i]));
+			}
+			return;
+		}
+		
 		synchronized (client) {
-			write("!list");
+			write(LIST_COMMAND);
 			String line = read();
-			Integer lines = Integer.parseInt(line);
+			Integer lines = Integer.parseInt(line.split(" ")[0]);
 			
 			for (int i = 0; i < lines; i++) {
 				line = read();
@@ -143,11 +175,16 @@ public class TestClient extends Thread {
 	
 	public boolean createAuction() {
 		if (DEBUG) System.out.println("\nCreating auction..");
+		String create = "!create " + auctionDuration + " testClient" + clientNr + "'s great auction nr. " + auctionCount;
 		String answer;
-		synchronized (client) {
-			write("!create " + auctionDuration + 
-					" testClient" + clientNr + "'s great auction nr. " + auctionCount);
-			answer = read();
+		if (pipeline != null) {
+			String[] lines = await(pipeline.submit(create));
+			answer = (lines == null) ? null : lines[0].split(" ")[0];
+		} else {
+			synchronized (client) {
+				write(create);
+				answer = read();
+			}
 		}
 		if ((null == answer) || !answer.equals(TCPProtocol.RESPONSE_SUCCESS)) return false;
 		
@@ -175,6 +212,17 @@ public class TestClient extends Thread {
 		
 		String bidStr = String.format("!bid %d %.2f", auctionId, dollars);
 		
+		if (pipeline != null) {
+			// keep a window of bids in flight
+			Pipeline.Response oldest = null;
+			synchronized (bidsInFlight) {
+				bidsInFlight.add(pipeline.submit(bidStr));
+				if (bidsInFlight.size() > MAX_IN_FLIGHT) oldest = bidsInFlight.poll();
+			}
+			if (oldest != null) await(oldest);
+			return;
+		}
+		
 		synchronized (client) {
 			write(bidStr);
 			read();
@@ -182,6 +230,17 @@ public class TestClient extends Thread {
 	}
 	
 	
+	private String[] await(Pipeline.Response response) {
+		try {
+			String[] lines = response.awaitLines();
+			if (DEBUG) System.out.println("read: " + lines[0]);
+			return lines;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
 	private void write(String str) {
 		if (DEBUG) System.out.println("write: " + str);
 		client.getChannel().send(str.getBytes());
@@ -0,0 +1,249 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import client.TCPProtocol;
+
+/**
+ * Limits the load new connections put on the server, e.g. when all clients
+ * reconnect at once after a restart.
+ * 
+ * Limits the number of open connections, the number of handshakes in progress and the
+ * rate at which a single address may connect. Refused connections get a !fail and are
+ * closed right away, without a handler. A limit of 0 disables the check.
+ * Also measures how long accepted connections wait until their handler starts.
+ */
+public class AdmissionControl {
+	private static final int MAX_TRACKED_ADDRESSES = 10000;
+	
+	/** Refusal as Base64 line, understood by every client */
+	private static final byte[] REFUSAL = (new String(Base64.encode(TCPProtocol.RESPONSE_FAIL.getBytes())) + "\n").getBytes();
+	
+	private final int maxConnections;
+	private final int maxHandshakes;
+	private final int acceptsPerSecond;
+	
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger handshakes  = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Rate> rates = new ConcurrentHashMap<InetAddress, Rate>();
+	
+	private final AtomicLong accepted           = new AtomicLong();
+	private final AtomicLong rejectedConnections = new AtomicLong();
+	private final AtomicLong rejectedHandshakes  = new AtomicLong();
+	private final AtomicLong latencyCount        = new AtomicLong();
+	private final AtomicLong latencyTotal        = new AtomicLong(); /** nanoseconds */
+	private final AtomicLong latencyMax          = new AtomicLong(); /** nanoseconds */
+	
+	/**
+	 * @param maxConnections maximum number of open connections
+	 * @param maxHandshakes maximum number of logins in progress
+	 * @param acceptsPerSecond connections accepted per second from a single address
+	 */
+	public AdmissionControl(int maxConnections, int maxHandshakes, int acceptsPerSecond) {
+		this.maxConnections = maxConnections;
+		this.maxHandshakes = maxHandshakes;
+		this.acceptsPerSecond = acceptsPerSecond;
+	}
+	
+	/**
+	 * Decides whether a new connection is accepted.
+	 * Accepted connections must be released with closed() once they are closed.
+	 * @param address address of the client
+	 * @return true, if the connection may be handled
+	 */
+	public boolean admit(InetAddress address) {
+		if (!allowRate(address)) {
+			rejectedConnections.incrementAndGet();
+			return false;
+		}
+		
+		int open = connections.incrementAndGet();
+		if (maxConnections > 0 && open > maxConnections) {
+			connections.decrementAndGet();
+			rejectedConnections.incrementAndGet();
+			return false;
+		}
+		
+		accepted.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Releases an admitted connection
+	 */
+	public void closed() {
+		connections.decrementAndGet();
+	}
+	
+	/**
+	 * Records how long an accepted connection waited for its handler
+	 * @param acceptedAt System.nanoTime() when the connection was accepted
+	 */
+	public void started(long acceptedAt) {
+		long latency = System.nanoTime() - acceptedAt;
+		
+		latencyCount.incrementAndGet();
+		latencyTotal.addAndGet(latency);
+		
+		long max;
+		while (latency > (max = latencyMax.get())) {
+			if (latencyMax.compareAndSet(max, latency)) break;
+		}
+	}
+	
+	/**
+	 * Reserves a slot for a handshake, to be released with endHandshake()
+	 * @return false, if too many handshakes are in progress
+	 */
+	public boolean beginHandshake() {
+		int running = handshakes.incrementAndGet();
+		if (maxHandshakes > 0 && running > maxHandshakes) {
+			handshakes.decrementAndGet();
+			rejectedHandshakes.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	public void endHandshake() {
+		handshakes.decrementAndGet();
+	}
+	
+	private boolean allowRate(InetAddress address) {
+		if (acceptsPerSecond <= 0 || address == null) return true;
+		
+		long now = System.nanoTime();
+		if (rates.size() > MAX_TRACKED_ADDRESSES) prune(now);
+		
+		Rate rate = rates.get(address);
+		if (rate == null) {
+			Rate created = new Rate(acceptsPerSecond, now);
+			rate = rates.putIfAbsent(address, created);
+			if (rate == null) rate = created;
+		}
+		return rate.take(now);
+	}
+	
+	/**
+	 * Forgets addresses that could connect at full rate again
+	 */
+	private void prune(long now) {
+		Iterator<Rate> it = rates.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now)) it.remove();
+		}
+	}
+	
+	/**
+	 * Sends a refusal over a blocking socket and closes it
+	 */
+	public static void refuse(Socket socket) {
+		try {
+			socket.setSoTimeout(100);
+			OutputStream out = socket.getOutputStream();
+			out.write(REFUSAL);
+			out.flush();
+		} catch (IOException e) {
+			// closed anyway
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Sends a refusal over a socket channel without blocking and closes it
+	 */
+	public static void refuse(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(REFUSAL));
+		} catch (IOException e) {
+			// closed anyway
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	public int getConnections() {
+		return connections.get();
+	}
+	
+	public int getHandshakes() {
+		return handshakes.get();
+	}
+	
+	public long getAccepted() {
+		return accepted.get();
+	}
+	
+	public long getRejectedConnections() {
+		return rejectedConnections.get();
+	}
+	
+	public long getRejectedHandshakes() {
+		return rejectedHandshakes.get();
+	}
+	
+	/**
+	 * @return average time accepted connections waited for their handler, in microseconds
+	 */
+	public long getAverageAcceptLatency() {
+		long count = latencyCount.get();
+		return (count == 0) ? 0 : latencyTotal.get() / count / 1000;
+	}
+	
+	/**
+	 * @return longest time an accepted connection waited for its handler, in microseconds
+	 */
+	public long getMaxAcceptLatency() {
+		return latencyMax.get() / 1000;
+	}
+	
+	/**
+	 * Token bucket holding up to one second worth of accepts
+	 */
+	private static class Rate {
+		private final int perSecond;
+		private double tokens;
+		private long last;
+		
+		public Rate(int perSecond, long now) {
+			this.perSecond = perSecond;
+			this.tokens = perSecond;
+			this.last = now;
+		}
+		
+		public synchronized boolean take(long now) {
+			refill(now);
+			if (tokens < 1) return false;
+			
+			tokens--;
+			return true;
+		}
+		
+		public synchronized boolean isIdle(long now) {
+			refill(now);
+			return tokens >= perSecond;
+		}
+		
+		private void refill(long now) {
+			tokens = Math.min(perSecond, tokens + (now - last) * perSecond / 1e9);
+			last = now;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package server;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import server.bean.Auction;
+import server.bean.BidState;
+import server.bean.User;
+import server.service.AuctionManager;
+import server.service.AuctionSnapshot;
+
+/**
+ * Renders the lines of the active auctions for !list.
+ * 
+ * The list is rendered once per change of the AuctionManager's version and shared
+ * by all connections, which only add their encryption and HMAC. Each line is
+ * formatted once and kept while its auction stays open: a new rendering
+ * formats only the lines of new auctions and of auctions whose bid changed,
+ * and copies the others. At most one thread renders at a time, without
+ * holding a lock; others take the previous rendering meanwhile.
+ * Paged listings by id page through the snapshot itself. The orders by end
+ * time and by bid are shared: by end time it is kept while only bids
+ * change, by bid for one version. Like the list, each order is sorted by
+ * one thread at a time while the others use the previous one.
+ */
+public class AuctionListCache {
+	private static final byte[] LINE_SEPARATOR = String.format("%n").getBytes();
+	
+	private AuctionManager auManager;
+	private volatile Rendering current;
+	private final AtomicBoolean rendering = new AtomicBoolean();
+	private volatile AuctionQuery.Ordering byEnd, byBid;
+	private final AtomicBoolean sortingByEnd = new AtomicBoolean();
+	private final AtomicBoolean sortingByBid = new AtomicBoolean();
+	
+	public AuctionListCache(AuctionManager auManager) {
+		this.auManager = auManager;
+	}
+	
+	/**
+	 * @return the list of active auctions, rendered at most once per change
+	 */
+	public Rendering get() {
+		AuctionSnapshot snapshot = auManager.getSnapshot();
+		
+		Rendering r = current;
+		if (r != null && r.version >= snapshot.getVersion()) return r;
+		
+		// somebody else is rendering, the previous list is at most one change behind
+		if (!rendering.compareAndSet(false, true)) {
+			if (r != null) return r;
+			return render(snapshot, null);
+		}
+		
+		try {
+			r = current;
+			if (r != null && r.version >= snapshot.getVersion()) return r;
+			
+			r = render(snapshot, r);
+			current = r;
+			return r;
+		} finally {
+			rendering.set(false);
+		}
+	}
+	
+	/**
+	 * @param snapshot
+	 * @param previous an earlier rendering whose lines are reused, may be null
+	 */
+	private static Rendering render(AuctionSnapshot snapshot, Rendering previous) {
+		List<Auction> auctions = snapshot.getAuctions();
+		Line[] lines = new Line[auctions.size()];
+		SimpleDateFormat sdf = new SimpleDateFormat();
+		
+		// both lists are ordered by id
+		Line[] old = (previous == null) ? new Line[0] : previous.lines;
+		int i = 0, j = 0;
+		for (Auction a : auctions) {
+			while (j < old.length && old[j].id < a.getId()) j++;
+			
+			Line line = (j < old.length && old[j].id == a.getId()) ? old[j] : null;
+			BidState bid = a.getBidState();
+			lines[i++] = (line != null && line.hasBid(bid)) ? line : new Line(a, bid, line, sdf);
+		}
+		return new Rendering(snapshot.getVersion(), lines);
+	}
+	
+	/**
+	 * Renders a page of a listing, not cached
+	 * @param auctions
+	 * @return the rendering of the given auctions
+	 */
+	public static Rendering render(List<Auction> auctions) {
+		SimpleDateFormat sdf = new SimpleDateFormat();
+		
+		Line[] lines = new Line[auctions.size()];
+		int i = 0;
+		for (Auction a : auctions) {
+			lines[i++] = new Line(a, a.getBidState(), null, sdf);
+		}
+		return new Rendering(-1, lines);
+	}
+	
+	/**
+	 * @param sort one of the AuctionQuery sort orders
+	 * @return the current active auctions in that order
+	 */
+	public AuctionQuery.Ordering getOrdering(String sort) {
+		AuctionSnapshot snapshot = auManager.getSnapshot();
+		
+		// the snapshot is ordered by id already
+		if (sort.equals(AuctionQuery.SORT_ID)) return new AuctionQuery.Ordering(snapshot, sort);
+		
+		boolean bid = sort.equals(AuctionQuery.SORT_BID);
+		AuctionQuery.Ordering o = bid ? byBid : byEnd;
+		if (isCurrent(o, snapshot, bid)) return o;
+		
+		// somebody else is sorting, the previous order is at most a few changes behind
+		AtomicBoolean sorting = bid ? sortingByBid : sortingByEnd;
+		if (!sorting.compareAndSet(false, true)) {
+			if (o != null) return o;
+			return new AuctionQuery.Ordering(snapshot, sort);
+		}
+		
+		try {
+			o = bid ? byBid : byEnd;
+			snapshot = auManager.getSnapshot();
+			if (isCurrent(o, snapshot, bid)) return o;
+			
+			o = new AuctionQuery.Ordering(snapshot, sort);
+			if (bid) byBid = o;
+			else byEnd = o;
+			return o;
+		} finally {
+			sorting.set(false);
+		}
+	}
+	
+	/**
+	 * @param bid true, if sorted by bid; by end time bids don't matter
+	 * @return true, if the ordering is up to date with the snapshot
+	 */
+	private static boolean isCurrent(AuctionQuery.Ordering o, AuctionSnapshot snapshot, boolean bid) {
+		if (o == null) return false;
+		if (bid) return o.getSnapshot().getVersion() >= snapshot.getVersion();
+		return o.getSnapshot().hasSameAuctions(snapshot);
+	}
+	
+	/**
+	 * The line of one auction with the bid it shows
+	 */
+	private static class Line {
+		final int id;
+		final String prefix; /** Everything up to the bid, never changes */
+		final double amount;
+		final User bidder;
+		final String text;
+		final byte[] bytes;
+		
+		/**
+		 * @param previous an earlier line of the same auction whose prefix is reused, may be null
+		 */
+		Line(Auction a, BidState bid, Line previous, SimpleDateFormat sdf) {
+			id = a.getId();
+			prefix = (previous != null) ? previous.prefix : String.format("%d. '%s' by %s %s ",
+					a.getId(),
+					a.getName(),
+					a.getOwner().getName(),
+					sdf.format(new Date(a.getEndMillis())));
+			amount = bid.getAmount();
+			bidder = bid.getBidder();
+			
+			String bidderName = (bidder == null) ? "none" : bidder.getName();
+			text = prefix + String.format("%.2f %s", amount, bidderName);
+			bytes = text.getBytes();
+		}
+		
+		boolean hasBid(BidState bid) {
+			return bid.getAmount() == amount && bid.getBidder() == bidder;
+		}
+	}
+	
+	/**
+	 * An immutable rendering of the auction list
+	 */
+	public static class Rendering {
+		private final long version;
+		private final Line[] lines;
+		private final String[] texts;
+		private final byte[] joined;
+		private final byte[] text;
+		
+		private Rendering(long version, Line[] lines) {
+			this.version = version;
+			this.lines = lines;
+			
+			texts = new String[lines.length];
+			int size = 0;
+			for (int i = 0; i < lines.length; i++) {
+				texts[i] = lines[i].text;
+				size += lines[i].bytes.length;
+			}
+			
+			joined = new byte[Math.max(size + lines.length - 1, 0)];
+			text = new byte[size + lines.length * LINE_SEPARATOR.length];
+			int j = 0, t = 0;
+			for (int i = 0; i < lines.length; i++) {
+				byte[] line = lines[i].bytes;
+				
+				if (i > 0) joined[j++] = '\n';
+				System.arraycopy(line, 0, joined, j, line.length);
+				j += line.length;
+				
+				System.arraycopy(line, 0, text, t, line.length);
+				t += line.length;
+				System.arraycopy(LINE_SEPARATOR, 0, text, t, LINE_SEPARATOR.length);
+				t += LINE_SEPARATOR.length;
+			}
+		}
+		
+		/**
+		 * @return number of auctions
+		 */
+		public int getCount() {
+			return texts.length;
+		}
+		
+		/**
+		 * @return a line per auction, to send them one by one
+		 */
+		public String[] getLines() {
+			return texts;
+		}
+		
+		/**
+		 * @return all lines separated by newlines, to send them as a single message
+		 */
+		public byte[] getJoined() {
+			return joined;
+		}
+		
+		/**
+		 * @return all lines, each followed by the platform line separator, as covered by the HMAC
+		 */
+		public byte[] getText() {
+			return text;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import server.bean.Auction;
+import server.bean.BidState;
+import server.service.AuctionSnapshot;
+
+/**
+ * A page of active auctions, as requested with arguments to !list:
+ *
+ *   !list [limit=n] [sort=id|end|bid] [owner=name] [before=unixSeconds] [cursor=c]
+ *
+ * Auctions are sorted by id, by end time (ending first) or by highest bid
+ * (highest first), ties broken by id. The cursor returned with a page names
+ * the sort key and id of its last auction, the next page starts right after
+ * it. It does not refer to a snapshot, so it stays valid while auctions are
+ * created and closed; when sorting by bid, an auction whose bid changed
+ * between pages can be skipped or listed twice.
+ */
+public class AuctionQuery {
+	public static final String SORT_ID  = "id";
+	public static final String SORT_END = "end";
+	public static final String SORT_BID = "bid";
+
+	public static final int DEFAULT_LIMIT = 100;
+	public static final int MAX_LIMIT     = 1000;
+
+	private int limit = DEFAULT_LIMIT;
+	private String sort = SORT_ID;
+	private String owner;
+	private long endsBefore = Long.MAX_VALUE;
+
+	private boolean hasCursor;
+	private long cursorKey;
+	private int cursorId;
+
+	/**
+	 * @param tokens the command and its arguments
+	 * @return the query
+	 * @throws IllegalArgumentException if an argument is unknown or malformed
+	 */
+	public static AuctionQuery parse(String[] tokens) {
+		AuctionQuery q = new AuctionQuery();
+		String cursor = null;
+
+		for (int i = 1; i < tokens.length; i++) {
+			int eq = tokens[i].indexOf('=');
+			if (eq <= 0) throw new IllegalArgumentException("Not a name=value argument: " + tokens[i]);
+
+			String name = tokens[i].substring(0, eq);
+			String value = tokens[i].substring(eq + 1);
+
+			if (name.equals("limit")) {
+				q.limit = Integer.parseInt(value);
+				if (q.limit < 1 || q.limit > MAX_LIMIT) throw new IllegalArgumentException("Limit out of range: " + value);
+			} else if (name.equals("sort")) {
+				if (!value.equals(SORT_ID) && !value.equals(SORT_END) && !value.equals(SORT_BID))
+					throw new IllegalArgumentException("Unknown sort order: " + value);
+				q.sort = value;
+			} else if (name.equals("owner")) {
+				q.owner = value;
+			} else if (name.equals("before")) {
+				q.endsBefore = Long.parseLong(value) * 1000;
+			} else if (name.equals("cursor")) {
+				cursor = value;
+			} else {
+				throw new IllegalArgumentException("Unknown argument: " + name);
+			}
+		}
+
+		if (cursor != null) {
+			// sort:key:id, the sort has to match
+			String[] parts = cursor.split(":");
+			if (parts.length != 3 || !parts[0].equals(q.sort))
+				throw new IllegalArgumentException("Invalid cursor: " + cursor);
+
+			q.cursorKey = Long.parseLong(parts[1]);
+			q.cursorId = Integer.parseInt(parts[2]);
+			q.hasCursor = true;
+		}
+		return q;
+	}
+
+	/**
+	 * @return true, if this continues an earlier page
+	 */
+	public boolean hasCursor() {
+		return hasCursor;
+	}
+
+	public String getSort() {
+		return sort;
+	}
+
+	/**
+	 * @param ordering the active auctions in the order of this query
+	 * @return the matching auctions after the cursor
+	 */
+	public Page run(Ordering ordering) {
+		int i = hasCursor ? ordering.after(cursorKey, cursorId) : 0;
+
+		List<Auction> auctions = new ArrayList<Auction>(Math.min(limit, 64));
+		int last = -1;
+		for (; i < ordering.size() && auctions.size() < limit; i++) {
+			Auction a = ordering.get(i);
+			if (owner != null && !owner.equals(a.getOwner().getName())) continue;
+			if (a.getEndMillis() >= endsBefore) continue;
+
+			auctions.add(a);
+			last = i;
+		}
+
+		// another page only if the scan stopped before the end
+		String next = null;
+		if (auctions.size() == limit && i < ordering.size()) {
+			next = sort + ":" + ordering.keyAt(last) + ":" + ordering.get(last).getId();
+		}
+		return new Page(auctions, next);
+	}
+
+	/**
+	 * @param sort
+	 * @param auction
+	 * @return the key the auction is sorted by, ascending
+	 */
+	private static long key(String sort, Auction auction) {
+		if (sort.equals(SORT_END)) return auction.getEndMillis();
+		if (sort.equals(SORT_BID)) {
+			// cents, negated for the highest bid first
+			BidState bid = auction.getBidState();
+			return -Math.round(bid.getAmount() * 100);
+		}
+		return 0;
+	}
+
+	/**
+	 * The active auctions of a snapshot sorted by one order, with their keys
+	 * taken once, so bids during sorting cannot change the order. Ordered by
+	 * id, it is the snapshot itself.
+	 */
+	public static class Ordering {
+		private final AuctionSnapshot snapshot;
+		private final long[] keys; /** null when ordered by id, all keys are 0 then */
+		private final List<Auction> auctions;
+
+		public Ordering(AuctionSnapshot snapshot, String sort) {
+			this.snapshot = snapshot;
+
+			List<Auction> list = snapshot.getAuctions();
+			if (sort.equals(SORT_ID)) {
+				keys = null;
+				auctions = list;
+				return;
+			}
+
+			int n = list.size();
+			Auction[] all = new Auction[n];
+			long[] unsorted = new long[n];
+			long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+			int i = 0;
+			for (Auction a : list) {
+				long key = key(sort, a);
+				all[i] = a;
+				unsorted[i++] = key;
+				min = Math.min(min, key);
+				max = Math.max(max, key);
+			}
+
+			// the key goes above the index into one long, so a primitive sort does the work;
+			// the snapshot is ordered by id, so the index keeps ties in id order
+			int shift = 64 - Long.numberOfLeadingZeros(Math.max(n - 1, 1));
+			long range = max - min;
+			long[] packed = new long[n];
+			if (n > 0 && (range < 0 || (range >>> (63 - shift)) != 0)) {
+				// the keys are too far apart, sort by their rank instead
+				long[] ranks = unsorted.clone();
+				Arrays.sort(ranks);
+				for (i = 0; i < n; i++) {
+					packed[i] = ((long) Arrays.binarySearch(ranks, unsorted[i]) << shift) | i;
+				}
+			} else {
+				for (i = 0; i < n; i++) {
+					packed[i] = ((unsorted[i] - min) << shift) | i;
+				}
+			}
+			Arrays.sort(packed);
+
+			long mask = (1L << shift) - 1;
+			keys = new long[n];
+			Auction[] sorted = new Auction[n];
+			for (i = 0; i < n; i++) {
+				int index = (int) (packed[i] & mask);
+				sorted[i] = all[index];
+				keys[i] = unsorted[index];
+			}
+			auctions = Arrays.asList(sorted);
+		}
+
+		public AuctionSnapshot getSnapshot() {
+			return snapshot;
+		}
+
+		int size() {
+			return auctions.size();
+		}
+
+		Auction get(int i) {
+			return auctions.get(i);
+		}
+
+		long keyAt(int i) {
+			return (keys == null) ? 0 : keys[i];
+		}
+
+		/**
+		 * @return index of the first auction ordered after the given key and id
+		 */
+		int after(long key, int id) {
+			int low = 0;
+			int high = auctions.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				long k = keyAt(mid);
+				if (k < key || (k == key && auctions.get(mid).getId() <= id)) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Auctions of one page and the cursor of the next
+	 */
+	public static class Page {
+		private final List<Auction> auctions;
+		private final String next;
+
+		Page(List<Auction> auctions, String next) {
+			this.auctions = auctions;
+			this.next = next;
+		}
+
+		public List<Auction> getAuctions() {
+			return auctions;
+		}
+
+		/**
+		 * @return the cursor of the next page, null if this is the last one
+		 */
+		public String getNext() {
+			return next;
+		}
+	}
+}
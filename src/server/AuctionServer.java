@@ -4,13 +4,16 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.security.PrivateKey;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -25,9 +28,14 @@ import server.service.impl.AnalyticsServerWrapper;
 import server.service.impl.AuctionManagerImpl;
 import server.service.impl.ClientManagerImpl;
 import server.service.impl.UserManagerImpl;
+import util.CryptoExecutor;
+import util.HandlerExecutors;
+import util.KeyStoreCache;
+import util.DeliveryQueue;
 import util.PropertyReader;
 import util.SecurityUtils;
 import analytics.AnalyticsServer;
+import channels.OutboundQueue;
 import billing.BillingServer;
 import billing.BillingServerSecure;
 
@@ -36,9 +44,12 @@ public class AuctionServer {
 	private static final String CMD_EXIT      = TCPProtocol.CMD_EXIT;
 	private static final String CMD_CLOSE     = "!close";
 	private static final String CMD_RECONNECT = "!reconnect";
+	private static final String CMD_STATS     = "!stats";
 	private static final Logger logger = Logger.getLogger("AuctionServer");
 	
 	private static final String registryProperties = "registry.properties";
+	private static final String serverProperties   = "server.properties";
+	private static final String DISPATCHER_NIO     = "nio";
 	private static final String billingServerUser = "server";
 	private static final String billingServerPass = "secure password";
 	
@@ -47,6 +58,10 @@ public class AuctionServer {
 	private static AuctionManager auManager;
 	private static UserManager usManager;
 	private static ClientManager clManager;
+	private static AdmissionControl admission;
+	private static KeyStoreCache keys;
+	private static ResumptionTickets tickets;
+	private static CryptoExecutor cryptoExecutor;
 	
 	private static BillingServerSecure billingServer;
 	private static AnalyticsServer analyticsServer;
@@ -54,6 +69,7 @@ public class AuctionServer {
 	private static PrivateKey privateKey;
 	private static String serverKeyPath, clientKeyDir;
 	private static int tcpPort;
+	private static Properties serverProps;
 	
 	public static void main(String[] args) {
 		tcpPort = 0;
@@ -78,6 +94,9 @@ public class AuctionServer {
 		
 		getPrivateKey(serverKeyPath);
 		
+		// optional, defaults are used for missing values
+		serverProps = PropertyReader.readProperties(serverProperties);
+		
 		// Get external servers from registry
 		try {
 			connectExternalServers(billingBindingName, analyticsBindingName);
@@ -88,9 +107,36 @@ public class AuctionServer {
 		
 		// Create Managers etc.
 		theGroup = new Group();
-		clManager = new ClientManagerImpl();
+		String executorMode = PropertyReader.getString(serverProps, "executor", HandlerExecutors.MODE_POOL);
+		int highWaterMark = PropertyReader.getInt(serverProps, "outbound.highWaterMark", OutboundQueue.DEFAULT_HIGH_WATER_MARK);
+		clManager = new ClientManagerImpl(HandlerExecutors.newExecutor(executorMode), highWaterMark);
 		usManager = new UserManagerImpl(clManager, wrappedAnalytics, theGroup);
-		auManager = new AuctionManagerImpl(usManager, billingServer, wrappedAnalytics, theGroup);
+		auManager = new AuctionManagerImpl(usManager, billingServer, wrappedAnalytics, theGroup,
+										   PropertyReader.getInt(serverProps, "expiry.tickMillis", AuctionManagerImpl.DEFAULT_TICK_MILLIS),
+										   PropertyReader.getInt(serverProps, "expiry.closeWorkers", AuctionManagerImpl.DEFAULT_CLOSE_WORKERS),
+										   PropertyReader.getInt(serverProps, "close.deliveryThreads", AuctionManagerImpl.DEFAULT_DELIVERY_THREADS),
+										   PropertyReader.getInt(serverProps, "close.queueSize", AuctionManagerImpl.DEFAULT_DELIVERY_QUEUE),
+										   PropertyReader.getInt(serverProps, "close.retries", AuctionManagerImpl.DEFAULT_RETRIES),
+										   PropertyReader.getInt(serverProps, "close.retryMillis", AuctionManagerImpl.DEFAULT_RETRY_MILLIS));
+		admission = new AdmissionControl(PropertyReader.getInt(serverProps, "admission.maxConnections", 10000),
+										 PropertyReader.getInt(serverProps, "admission.maxHandshakes", 64),
+										 PropertyReader.getInt(serverProps, "admission.acceptsPerSecondPerIp", 0));
+		
+		keys = new KeyStoreCache(clientKeyDir,
+								 PropertyReader.getInt(serverProps, "keys.maxEntries", 1024),
+								 PropertyReader.getInt(serverProps, "keys.ttlSeconds", 600) * 1000L,
+								 PropertyReader.getInt(serverProps, "keys.checkMillis", 1000));
+		
+		int ticketLifetime = PropertyReader.getInt(serverProps, "resume.lifetimeSeconds", 3600);
+		if (ticketLifetime > 0) {
+			tickets = new ResumptionTickets(PropertyReader.getInt(serverProps, "resume.maxTickets", 10000),
+											ticketLifetime * 1000L);
+		}
+		
+		int cryptoThreads = PropertyReader.getInt(serverProps, "crypto.threads", Runtime.getRuntime().availableProcessors());
+		if (cryptoThreads > 0) {
+			cryptoExecutor = new CryptoExecutor(cryptoThreads, PropertyReader.getInt(serverProps, "crypto.queueSize", 256));
+		}
 		
 		acceptConnections();
 		
@@ -118,26 +164,90 @@ public class AuctionServer {
 				close();
 			} else if (input.equals(CMD_RECONNECT)) {
 				acceptConnections();
+			} else if (input.equals(CMD_STATS)) {
+				printStats();
 			} else {
 				System.out.println("Unknown command");
 			}
 		}
 	}
 	
+	private static void printStats() {
+		System.out.println(String.format("connections: %d active (%d clients), %d in handshake, %d accepted",
+				admission.getConnections(), clManager.getClientCount(), admission.getHandshakes(), admission.getAccepted()));
+		System.out.println(String.format("rejected: %d connections, %d handshakes; accept latency avg %d us, max %d us",
+				admission.getRejectedConnections(), admission.getRejectedHandshakes(),
+				admission.getAverageAcceptLatency(), admission.getMaxAcceptLatency()));
+		System.out.println(String.format("client keys: %d cached, %d hits, %d loaded from disk",
+				keys.size(), keys.getHits(), keys.getLoads()));
+		System.out.println(String.format("login decrypts: %d skipped by length, %d failed",
+				ConnectionHandler.getSkippedDecrypts(), ConnectionHandler.getFailedDecrypts()));
+		if (cryptoExecutor != null) {
+			System.out.println(String.format("crypto: %d threads, %d queued, %d done, %d rejected; wait avg %d us, max %d us; run avg %d us",
+					cryptoExecutor.getThreads(), cryptoExecutor.getQueued(), cryptoExecutor.getCompleted(),
+					cryptoExecutor.getRejected(), cryptoExecutor.getAverageWait(), cryptoExecutor.getMaxWait(),
+					cryptoExecutor.getAverageRun()));
+		}
+		if (tickets != null) {
+			System.out.println(String.format("resumption tickets: %d valid, %d issued, %d redeemed, %d rejected",
+					tickets.size(), tickets.getIssued(), tickets.getRedeemed(), tickets.getRejected()));
+		}
+		System.out.println(String.format("auction expiry: %d pending, %d ended; lag avg %d ms, max %d ms",
+				auManager.getPendingExpiries(), auManager.getEndedCount(), auManager.getAverageExpiryLag(), auManager.getMaxExpiryLag()));
+		printDeliveryStats(auManager.getBillingQueue());
+		printDeliveryStats(auManager.getAnalyticsQueue());
+		System.out.println(String.format("outbound queues: %d messages, %d bytes, %d slow consumers disconnected",
+				OutboundQueue.getTotalMessages(), OutboundQueue.getTotalBytes(), OutboundQueue.getSlowConsumers()));
+		
+		Map<String, Long> commands = ConnectionHandler.getCommandStatistics();
+		for (Map.Entry<String, Long> e : commands.entrySet()) {
+			System.out.println(String.format("%-16s %d", e.getKey(), e.getValue()));
+		}
+	}
+	
+	private static void printDeliveryStats(DeliveryQueue queue) {
+		System.out.println(String.format("%s: %d queued, %d retrying, %d delivered, %d failed (%d rejected), %d retries",
+				queue.getName(), queue.getQueued(), queue.getRetrying(), queue.getDelivered(),
+				queue.getFailed(), queue.getRejected(), queue.getRetried()));
+	}
+	
 	private static void acceptConnections() {
 		if (socket != null) return;
 		
+		String mode = PropertyReader.getString(serverProps, "dispatcher", "blocking");
+		boolean nio = mode.equals(DISPATCHER_NIO);
+		
 		// Create socket
 		try {
-			socket = new ServerSocket(tcpPort);
+			if (nio) {
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(tcpPort));
+				socket = serverChannel.socket();
+			} else {
+				socket = new ServerSocket(tcpPort);
+			}
 		} catch (IOException e) {
 			System.out.println("Could not create server socket");
 			System.exit(1);
 		}
 		
 		// Accept connections
-		ConnectionDispatcher dispatcher = 
-				new ConnectionDispatcher(socket, clManager, usManager, auManager, theGroup, privateKey, clientKeyDir);
+		String executorMode = PropertyReader.getString(serverProps, "executor", HandlerExecutors.MODE_POOL);
+		Runnable dispatcher;
+		if (nio) {
+			int selectorThreads = PropertyReader.getInt(serverProps, "nio.selectorThreads", 2);
+			NioConnectionDispatcher d = new NioConnectionDispatcher(socket, clManager, usManager, auManager,
+					theGroup, privateKey, keys, selectorThreads, executorMode, admission);
+			d.setResumptionTickets(tickets);
+			d.setCryptoExecutor(cryptoExecutor);
+			dispatcher = d;
+		} else {
+			ConnectionDispatcher d = new ConnectionDispatcher(socket, clManager, usManager, auManager,
+					theGroup, privateKey, keys, executorMode, admission);
+			d.setResumptionTickets(tickets);
+			d.setCryptoExecutor(cryptoExecutor);
+			dispatcher = d;
+		}
 		Thread serverThread = new Thread(dispatcher);
 		serverThread.start();
 	}
@@ -214,5 +324,6 @@ public class AuctionServer {
 	private static void shutdown() {
 		close();
 		auManager.shutdown();
+		if (cryptoExecutor != null) cryptoExecutor.shutdown();
 	}
 }
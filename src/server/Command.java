@@ -0,0 +1,13 @@
+package server;
+
+/**
+ * Handles one command of the client protocol, see CommandRegistry
+ * @param <T> the connection state the command works on
+ */
+public interface Command<T> {
+	/**
+	 * @param context state of the connection the command was received on
+	 * @param args arguments following the command name
+	 */
+	void execute(T context, CommandTokenizer args);
+}
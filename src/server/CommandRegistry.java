@@ -0,0 +1,148 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps command names to their handlers.
+ * 
+ * Commands are looked up by the hash of the name bytes in an open addressed table,
+ * so dispatching a message takes the same time for every command and allocates nothing.
+ * Counts how often each command was executed.
+ * @param <T> the connection state the commands work on
+ */
+public class CommandRegistry<T> {
+	private volatile Entry<T>[] table = newTable(16);
+	private final Map<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>();
+	private final AtomicLong unknown = new AtomicLong();
+	
+	/**
+	 * Adds a command, replacing an earlier one with the same name
+	 * @param name command name, e.g. "!bid"
+	 * @param command
+	 */
+	public void register(String name, Command<T> command) {
+		register(name, command, false);
+	}
+	
+	/**
+	 * Adds a command, replacing an earlier one with the same name
+	 * @param name command name, e.g. "!bid"
+	 * @param command
+	 * @param pipelined true, if the command may run concurrently to other commands of the same connection
+	 */
+	public synchronized void register(String name, Command<T> command, boolean pipelined) {
+		entries.put(name, new Entry<T>(name, command, pipelined));
+		
+		// rebuild, so lookups never see a half filled table
+		Entry<T>[] newTable = newTable(Math.max(16, Integer.highestOneBit(entries.size() * 4)));
+		for (Entry<T> e : entries.values()) {
+			int mask = newTable.length - 1;
+			int i = e.hash & mask;
+			while (newTable[i] != null) i = (i + 1) & mask;
+			newTable[i] = e;
+		}
+		table = newTable;
+	}
+	
+	/**
+	 * Executes the command the message starts with
+	 * @param context state of the connection
+	 * @param message the message, its position is moved past the parsed arguments
+	 * @param args tokenizer to read the arguments with
+	 * @return false, if the message starts with no known command
+	 */
+	public boolean dispatch(T context, ByteBuffer message, CommandTokenizer args) {
+		Entry<T> entry = lookup(message);
+		if (entry == null) {
+			unknown.incrementAndGet();
+			return false;
+		}
+		
+		entry.count.incrementAndGet();
+		args.reset(message);
+		entry.command.execute(context, args);
+		return true;
+	}
+	
+	/**
+	 * @param message
+	 * @return true, if the message starts with a command that may be pipelined
+	 */
+	public boolean isPipelined(ByteBuffer message) {
+		Entry<T> entry = lookup(message);
+		return entry != null && entry.pipelined;
+	}
+	
+	private Entry<T> lookup(ByteBuffer message) {
+		int start = message.position();
+		int end = start;
+		int hash = 0;
+		while (end < message.limit()) {
+			byte b = message.get(end);
+			if (b == ' ') break;
+			hash = 31 * hash + b;
+			end++;
+		}
+		
+		Entry<T>[] t = table;
+		int mask = t.length - 1;
+		for (int i = hash & mask; t[i] != null; i = (i + 1) & mask) {
+			if (t[i].hash == hash && t[i].matches(message, start, end)) return t[i];
+		}
+		return null;
+	}
+	
+	/**
+	 * @return number of executions per command, in the order the commands were registered
+	 */
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		for (Entry<T> e : entries.values()) {
+			stats.put(e.name, e.count.get());
+		}
+		return stats;
+	}
+	
+	/**
+	 * @return number of messages that started with no known command
+	 */
+	public long getUnknownCount() {
+		return unknown.get();
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T> Entry<T>[] newTable(int size) {
+		return new Entry[size];
+	}
+	
+	private static class Entry<T> {
+		final String name;
+		final byte[] nameBytes;
+		final int hash;
+		final Command<T> command;
+		final boolean pipelined;
+		final AtomicLong count = new AtomicLong();
+		
+		Entry(String name, Command<T> command, boolean pipelined) {
+			this.name = name;
+			this.nameBytes = name.getBytes();
+			this.command = command;
+			this.pipelined = pipelined;
+			
+			int h = 0;
+			for (byte b : nameBytes) h = 31 * h + b;
+			this.hash = h;
+		}
+		
+		boolean matches(ByteBuffer message, int start, int end) {
+			if (end - start != nameBytes.length) return false;
+			for (int i = 0; i < nameBytes.length; i++) {
+				if (message.get(start + i) != nameBytes[i]) return false;
+			}
+			return true;
+		}
+	}
+}
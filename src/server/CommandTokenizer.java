@@ -0,0 +1,136 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the space separated arguments of a command straight from the message buffer.
+ * Numbers are parsed without creating Strings, so a tokenizer can be reused
+ * for every message of a connection without allocating.
+ */
+public class CommandTokenizer {
+	/** Powers of ten that are exact doubles */
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+	
+	private ByteBuffer message;
+	private int start;
+	
+	/**
+	 * Starts reading the arguments of a new message
+	 * @param message a message starting with the command name
+	 */
+	public void reset(ByteBuffer message) {
+		this.message = message;
+		this.start = message.position();
+		
+		// skip the command name
+		int pos = start;
+		int limit = message.limit();
+		while (pos < limit && message.get(pos) != ' ') pos++;
+		message.position(pos);
+	}
+	
+	/**
+	 * @return true, if there are no more arguments
+	 */
+	public boolean atEnd() {
+		return !message.hasRemaining();
+	}
+	
+	/**
+	 * Reads the next argument as non-negative integer
+	 * @return the number, -1 if the argument is missing or not a number
+	 */
+	public int nextInt() {
+		int pos = message.position();
+		if (!skipSpace()) return -1;
+		
+		long value = 0;
+		int digits = 0;
+		
+		while (message.hasRemaining()) {
+			int d = message.get(message.position()) - '0';
+			if (d < 0 || d > 9) break;
+			
+			value = value * 10 + d;
+			if (value > Integer.MAX_VALUE) break;
+			
+			message.position(message.position() + 1);
+			digits++;
+		}
+		
+		if (digits == 0 || value > Integer.MAX_VALUE || !atSeparator()) {
+			message.position(pos);
+			return -1;
+		}
+		return (int) value;
+	}
+	
+	/**
+	 * Reads the next argument as plain decimal number like 12 or 12.50
+	 * @return the number, NaN if the argument is missing or not a number
+	 */
+	public double nextAmount() {
+		int pos = message.position();
+		if (!skipSpace()) return Double.NaN;
+		
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		
+		while (message.hasRemaining()) {
+			byte b = message.get(message.position());
+			if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (b >= '0' && b <= '9') {
+				// more digits would not be exact anymore
+				if (++digits > 15) break;
+				mantissa = mantissa * 10 + (b - '0');
+				if (decimals >= 0) decimals++;
+			} else {
+				break;
+			}
+			message.position(message.position() + 1);
+		}
+		
+		if (digits == 0 || digits > 15 || !atSeparator()) {
+			message.position(pos);
+			return Double.NaN;
+		}
+		
+		// mantissa and power of ten are exact, so a single division rounds correctly
+		return (decimals > 0) ? mantissa / POW10[decimals] : mantissa;
+	}
+	
+	/**
+	 * @return the whole message split at spaces, including the command name
+	 */
+	public String[] tokens() {
+		return text().split(" ");
+	}
+	
+	/**
+	 * @return the whole message split at newlines, the first line starts with the command name
+	 */
+	public String[] lines() {
+		return text().split("\n");
+	}
+	
+	private String text() {
+		byte[] bytes = new byte[message.limit() - start];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = message.get(start + i);
+		
+		return new String(bytes);
+	}
+	
+	private boolean skipSpace() {
+		if (!message.hasRemaining() || message.get(message.position()) != ' ') return false;
+		message.position(message.position() + 1);
+		return true;
+	}
+	
+	private boolean atSeparator() {
+		return !message.hasRemaining() || message.get(message.position()) == ' ';
+	}
+}
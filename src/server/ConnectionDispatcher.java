@@ -10,11 +10,15 @@ import server.bean.Group;
 import server.service.AuctionManager;
 import server.service.ClientManager;
 import server.service.UserManager;
+import util.CryptoExecutor;
+import util.HandlerExecutors;
+import util.KeyStoreCache;
 
 
 /**
  * Accepts connections on a socket
  * and handles incoming connections using a Thread Pool
+ * or virtual threads, see HandlerExecutors
  */
 public class ConnectionDispatcher implements Runnable {
 	private ServerSocket socket;
@@ -23,32 +27,71 @@ public class ConnectionDispatcher implements Runnable {
 	private AuctionManager auManager;
 	private Group          theGroup;
 	private PrivateKey     privateKey;
-	private String         clientKeyDir;
+	private KeyStoreCache  keys;
+	private String         executorMode;
+	private AuctionListCache listCache;
+	private AdmissionControl admission;
+	private ResumptionTickets tickets;
+	private CryptoExecutor cryptoExecutor;
 	
 	public ConnectionDispatcher(ServerSocket socket, ClientManager clManager, UserManager usManager,
-								AuctionManager auManager, Group group, PrivateKey privateKey, String clientKeyDir) {
+								AuctionManager auManager, Group group, PrivateKey privateKey, KeyStoreCache keys,
+								String executorMode, AdmissionControl admission) {
 		this.socket = socket;
 		this.clManager = clManager;
 		this.usManager = usManager;
 		this.auManager = auManager;
 		this.theGroup = group;
 		this.privateKey = privateKey;
-		this.clientKeyDir = clientKeyDir;
+		this.keys = keys;
+		this.executorMode = executorMode;
+		this.admission = admission;
+		this.listCache = new AuctionListCache(auManager);
+	}
+	
+	/**
+	 * @param tickets store for resumption tickets, null to disable resumption
+	 */
+	public void setResumptionTickets(ResumptionTickets tickets) {
+		this.tickets = tickets;
+	}
+	
+	/**
+	 * @param executor runs RSA decryption and signature checks, null to run them on the handler threads
+	 */
+	public void setCryptoExecutor(CryptoExecutor executor) {
+		this.cryptoExecutor = executor;
 	}
 	
 	@Override
 	public void run() {
-		ExecutorService executor = java.util.concurrent.Executors.newCachedThreadPool();
+		ExecutorService executor = HandlerExecutors.newExecutor(executorMode);
 		
 		// Listen to Connections
 		while (true) {
 			try {
 				Socket clientSocket = socket.accept();
+				long acceptedAt = System.nanoTime();
+				
+				if (admission != null && !admission.admit(clientSocket.getInetAddress())) {
+					AdmissionControl.refuse(clientSocket);
+					continue;
+				}
+				
 				Client client = clManager.newClient(clientSocket);
+				if (client == null) {
+					if (admission != null) admission.closed();
+					clientSocket.close();
+					continue;
+				}
 				
 				// create a Runnable for handling this client
 				ConnectionHandler handler = new ConnectionHandler(client, clManager, usManager,
-																  auManager, theGroup, privateKey, clientKeyDir);
+																  auManager, theGroup, privateKey, keys, listCache);
+				handler.setRequestExecutor(executor);
+				handler.setAdmissionControl(admission, acceptedAt);
+				handler.setResumptionTickets(tickets);
+				handler.setCryptoExecutor(cryptoExecutor);
 				
 				// To the Thread Pool with it!
 				executor.execute(handler);
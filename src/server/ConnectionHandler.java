@@ -1,12 +1,26 @@
 package server;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.Key;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
+import java.security.interfaces.RSAKey;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,90 +38,431 @@ import server.bean.User;
 import server.service.AuctionManager;
 import server.service.ClientManager;
 import server.service.UserManager;
+import util.BufferFormat;
+import util.CryptoExecutor;
+import util.KeyStoreCache;
 import util.SecurityUtils;
+import channels.BufferChannel;
+import channels.BufferPool;
+import channels.CipherChannel;
+import channels.FramableChannel;
 import client.TCPProtocol;
 
 
 public class ConnectionHandler implements Runnable {
+	private static final int  MAX_RESPONSE   = 64; /** Response size without auction name */
+	private static final byte TAG_START      = '#';
+	private static final int  MAX_TAG_DIGITS = 9;
+	private static final int  MAX_FAILED_DECRYPTS = 3; /** Per connection, then it is closed */
+	
+	private static final boolean AEAD_SUPPORTED = CipherChannel.isAeadSupported();
+	
+	private static final AtomicLong skippedDecrypts = new AtomicLong();
+	private static final AtomicLong failedDecrypts  = new AtomicLong();
+	
+	private static final CommandRegistry<Request> COMMANDS = new CommandRegistry<Request>();
+	static {
+		// these may be pipelined, see Request
+		COMMANDS.register(TCPProtocol.CMD_BID, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.bid(r, args); }
+		}, true);
+		COMMANDS.register(TCPProtocol.CMD_LIST, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.listAuctions(r, args.tokens()); }
+		}, true);
+		COMMANDS.register(TCPProtocol.CMD_SEARCH, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.searchAuctions(r, args.tokens()); }
+		}, true);
+		COMMANDS.register(TCPProtocol.CMD_CREATE, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.createAuction(r, args.tokens()); }
+		}, true);
+		
+
+		COMMANDS.register(TCPProtocol.CMD_LOGOUT, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.logout(args.tokens()); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_GROUP_BID, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.groupBid(args.tokens()); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_CONFIRM, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.confirm(args.tokens()); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_SIGNED_BID, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.signedBid(args.tokens()); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_UDP, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.setUdp(args.tokens()); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_ACTIVE_USERS, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.listActiveUsers(); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_SIGNED_BIDS, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.signedBids(args.lines()); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_TICKET, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.issueTicket(); }
+		});
+		COMMANDS.register(TCPProtocol.CMD_RESUME, new Command<Request>() {
+			public void execute(Request r, CommandTokenizer args) { r.handler.resume(args.tokens()); }
+		});
+	}
+	
 	private Logger logger = Logger.getLogger(this.getClass().getName());
 	
 	private Client client;
-	private User user;
+	private volatile User user;
 	private ClientManager clManager;
 	private UserManager usManager;
 	private AuctionManager auManager;
 	private Group theGroup;
 	private PrivateKey privateKey;
-	private String clientKeyDir;
+	private int rsaBlockSize; /** Length of a message encrypted for the server, -1 if unknown */
+	private int decryptFailures;
+	private KeyStoreCache keys;
+	private PendingLogin pendingLogin;
+	private boolean closed;
+	private final CommandTokenizer tokenizer = new CommandTokenizer();
+	private final Request inOrder = new Request(this, null);
+	
+	private AuctionListCache listCache;
+	private ResumptionTickets tickets;
+	private byte[] sessionSecret; /** Shared with the client, tickets are derived from it */
+	private CryptoExecutor cryptoExecutor;
+	private Executor requestExecutor;
+	private AdmissionControl admission;
+	private long acceptedAt;
+	private boolean handshaking;
+	private int inFlight; /** Pipelined requests not yet answered */
+	private final Lock inFlightLock = new ReentrantLock();
+	private final Condition allAnswered = inFlightLock.newCondition();
 	
 	public ConnectionHandler(Client client, ClientManager clManager, UserManager usManager,
-							 AuctionManager auManager, Group group, PrivateKey privateKey, String clientKeyDir) {
+							 AuctionManager auManager, Group group, PrivateKey privateKey, KeyStoreCache keys,
+							 AuctionListCache listCache) {
 		this.client = client;
 		this.clManager = clManager;
 		this.usManager = usManager;
 		this.auManager = auManager;
 		this.privateKey = privateKey;
-		this.clientKeyDir = clientKeyDir;
+		this.rsaBlockSize = (privateKey instanceof RSAKey)
+							? (((RSAKey) privateKey).getModulus().bitLength() + 7) / 8 : -1;
+		this.keys = keys;
 		this.theGroup = group;
+		this.listCache = listCache;
+	}
+
+	/**
+	 * @param tickets store for resumption tickets, null to always require the RSA handshake
+	 */
+	public void setResumptionTickets(ResumptionTickets tickets) {
+		this.tickets = tickets;
+	}
+	
+	/**
+	 * @param executor runs RSA decryption and signature checks, null to run them on the handler thread
+	 */
+	public void setCryptoExecutor(CryptoExecutor executor) {
+		this.cryptoExecutor = executor;
+	}
+	
+	/**
+	 * @param admission limits handshakes, released when the client disconnects
+	 * @param acceptedAt System.nanoTime() when the connection was accepted
+	 */
+	public void setAdmissionControl(AdmissionControl admission, long acceptedAt) {
+		this.admission = admission;
+		this.acceptedAt = acceptedAt;
+	}
+	
+	/**
+	 * Called when the connection starts being served
+	 */
+	void started() {
+		if (admission != null) admission.started(acceptedAt);
+	}
+	
+	/**
+	 * @param executor runs pipelined requests, they are run in order when there is none
+	 */
+	public void setRequestExecutor(Executor executor) {
+		this.requestExecutor = executor;
 	}
 
 	@Override
 	public void run() {
+		started();
+		
 		// listen for messages
-		byte[] input;
 		try {
-			while ((input = client.getChannel().read()) != null) {
-				processMessage(input);
-			}
+			while (processNext()) {}
 		} catch (IOException e) {
 			logger.log(Level.FINE, "Client disconnected");
 		} finally {	
-			// close resources
-			if (user != null) usManager.disconnect(user);
-			clManager.disconnect(client);
+			disconnected();
 		}
 	}
 	
-	private void processMessage(byte[] message) {
-		String msg = new String(message);
+	/**
+	 * Closes all resources of this connection.
+	 * Called once the client disconnected, calling it again has no effect.
+	 */
+	void disconnected() {
+		if (closed) return;
+		closed = true;
+		
+		if (user != null) usManager.disconnect(user);
+		clManager.disconnect(client);
+		
+		if (admission != null) {
+			endHandshake();
+			admission.closed();
+		}
+	}
+	
+	/**
+	 * Reads and handles the next message of the client
+	 * @return false, if the client closed the connection
+	 * @throws IOException
+	 */
+	boolean processNext() throws IOException {
+		BufferChannel channel = client.getCipherChannel();
+		
+		ByteBuffer input = channel.readBuffer();
+		if (input == null) return false;
+		
+		try {
+			processMessage(input);
+		} finally {
+			channel.release(input);
+		}
+		return true;
+	}
+	
+	/**
+	 * Handles a single message received from the client
+	 * @param message
+	 */
+	void processMessage(ByteBuffer message) {
+		if (pendingLogin != null) {
+			completeLogin(toBytes(message));
+			return;
+		}
+		
+		if (message.hasRemaining() && message.get(message.position()) == TAG_START) {
+			String tag = readTag(message);
+			if (tag != null) {
+				pipeline(tag, message);
+				return;
+			}
+		}
+		
+		// everything else keeps its order
+		awaitPipelined();
+		if (COMMANDS.dispatch(inOrder, message, tokenizer)) return;
+		
+		// RSA ciphertext is exactly as long as the modulus, anything else is no !login
+		if (rsaBlockSize > 0 && message.remaining() != rsaBlockSize) {
+			skippedDecrypts.incrementAndGet();
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		
+		// could be encrypted !login message, limit how many are decrypted at once
+		if (!beginHandshake()) {
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		
+		byte[] decrypted;
+		try {
+			decrypted = decryptRSA(toBytes(message));
+		} catch (RejectedExecutionException e) {
+			// crypto threads are saturated, the client tries again later
+			endHandshake();
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		if (decrypted == null) {
+			decryptFailed();
+			return;
+		}
+		String msg = new String(decrypted);
+		
 		String[] tokens = msg.split(" ");
-		String cmd = tokens[0];
-		
-		if (cmd.equals(TCPProtocol.CMD_LOGOUT)) {
-			logout(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_CREATE)) {
-			createAuction(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_LIST)) {
-			listAuctions(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_BID)) {
-			bid(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_GROUP_BID)) {
-			groupBid(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_CONFIRM)) {
-			confirm(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_SIGNED_BID)) {
-			signedBid(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_UDP)) {
-			setUdp(tokens);
-		} else if (cmd.equals(TCPProtocol.CMD_ACTIVE_USERS)) {
-			listActiveUsers();
-		} else {
-			// could be encrypted !login message
-			msg = new String(SecurityUtils.decryptRSA(message, privateKey));
-			
-			tokens = msg.split(" ");
-			cmd = tokens[0];
-			
-			if (cmd.equals(TCPProtocol.CMD_LOGIN)) {
-				login(tokens);
+		if (tokens[0].equals(TCPProtocol.CMD_LOGIN)) {
+			login(tokens);
+		}
+		
+		// in progress until the client returns the server challenge
+		if (pendingLogin == null) endHandshake();
+	}
+	
+	/**
+	 * Answers a message that could not be decrypted,
+	 * closes the connection once the client sent too many of them
+	 */
+	private void decryptFailed() {
+		endHandshake();
+		failedDecrypts.incrementAndGet();
+		
+		if (++decryptFailures >= MAX_FAILED_DECRYPTS) {
+			logger.log(Level.INFO, "Closing connection after " + decryptFailures + " undecryptable messages");
+			disconnected();
+			return;
+		}
+		clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+	}
+	
+	/**
+	 * Decrypts with the server's private key, on the crypto executor if there is one
+	 * @throws RejectedExecutionException if the crypto executor is saturated
+	 */
+	private byte[] decryptRSA(final byte[] message) {
+		CryptoExecutor crypto = cryptoExecutor;
+		if (crypto == null) return SecurityUtils.decryptRSA(message, privateKey);
+		
+		return crypto.call(new Callable<byte[]>() {
+			public byte[] call() {
+				return SecurityUtils.decryptRSA(message, privateKey);
+			}
+		});
+	}
+	
+	private boolean beginHandshake() {
+		if (handshaking || admission == null) return true;
+		
+		handshaking = admission.beginHandshake();
+		return handshaking;
+	}
+	
+	private void endHandshake() {
+		if (!handshaking) return;
+		
+		handshaking = false;
+		admission.endHandshake();
+	}
+	
+	/**
+	 * Runs a tagged command, concurrently to later messages when possible
+	 * @param tag
+	 * @param message the command following the tag
+	 */
+	private void pipeline(String tag, ByteBuffer message) {
+		final Request request = new Request(this, tag);
+		
+		if (!COMMANDS.isPipelined(message)) {
+			request.reply(TCPProtocol.RESPONSE_FAIL);
+			request.finish();
+			return;
+		}
+		
+		// the buffer is reused once we return
+		final ByteBuffer copy = ByteBuffer.wrap(toBytes(message));
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					COMMANDS.dispatch(request, copy, new CommandTokenizer());
+					request.finish();
+				} finally {
+					answered();
+				}
 			}
+		};
+		
+		inFlightLock.lock();
+		try {
+			inFlight++;
+		} finally {
+			inFlightLock.unlock();
+		}
+		
+		Executor executor = requestExecutor;
+		if (executor == null) {
+			task.run();
+			return;
+		}
+		
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
 		}
 	}
 	
+	private void answered() {
+		inFlightLock.lock();
+		try {
+			if (--inFlight == 0) allAnswered.signalAll();
+		} finally {
+			inFlightLock.unlock();
+		}
+	}
+	
+	/**
+	 * Blocks until all pipelined requests are answered
+	 */
+	private void awaitPipelined() {
+		inFlightLock.lock();
+		try {
+			while (inFlight > 0) allAnswered.awaitUninterruptibly();
+		} finally {
+			inFlightLock.unlock();
+		}
+	}
+	
+	/**
+	 * Reads a tag like "#42 " and moves the position past it
+	 * @return the tag without the trailing space, null if the message is not tagged
+	 */
+	private static String readTag(ByteBuffer message) {
+		int start = message.position();
+		int pos = start + 1;
+		int limit = message.limit();
+		
+		while (pos < limit && pos - start <= MAX_TAG_DIGITS) {
+			byte b = message.get(pos);
+			if (b == ' ') break;
+			if (b < '0' || b > '9') return null;
+			pos++;
+		}
+		if (pos == start + 1 || pos >= limit || message.get(pos) != ' ') return null;
+		
+		byte[] tag = new byte[pos - start];
+		message.get(tag);
+		message.get(); // space
+		return new String(tag);
+	}
+	
+	/**
+	 * @return messages not decrypted because their length cannot be RSA ciphertext, over all connections
+	 */
+	public static long getSkippedDecrypts() {
+		return skippedDecrypts.get();
+	}
+	
+	/**
+	 * @return messages that failed RSA decryption, over all connections
+	 */
+	public static long getFailedDecrypts() {
+		return failedDecrypts.get();
+	}
+	
+	/**
+	 * @return execution counts of the client commands, over all connections
+	 */
+	public static Map<String, Long> getCommandStatistics() {
+		return COMMANDS.getStatistics();
+	}
+	
+	private static byte[] toBytes(ByteBuffer message) {
+		byte[] bytes = new byte[message.remaining()];
+		message.get(bytes);
+		return bytes;
+	}
+	
 	private void login(String[] tokens) {
 		// begin handshake
 		/* **************************************************************************************
-		 *              Step 1: receive !login <username> <tcpPort> <client-challenge>
+		 *       Step 1: receive !login <username> <tcpPort> <client-challenge> [capabilities]
 		 * **************************************************************************************/
 		if (tokens.length < 4) {
 			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
@@ -127,28 +482,32 @@ public class ConnectionHandler implements Runnable {
 		
 		/* **************************************************************************************
 		 *   Step 2: send !ok <client-challenge> <server-challenge> <secret-key> <iv-parameter>
+		 *                    [capabilities]
 		 * **************************************************************************************/
 		
 		// generate server challenge
-		SecureRandom secureRandom = new SecureRandom(); 
-		final byte[] serverChallenge = new byte[32];
-		secureRandom.nextBytes(serverChallenge);
+		final byte[] serverChallenge = SecurityUtils.generateNumber(32);
 		String serverChallenge64 = new String(Base64.encode(serverChallenge));
 		
 		
 		// generate secret key
 		SecretKey key = SecurityUtils.getSecretKey(TCPProtocol.KEYSIZE);
 		String secretKey = new String(Base64.encode(key.getEncoded()));
+		sessionSecret = key.getEncoded();
 		
 		// generate iv
-		final byte[] iv = new byte[16]; 
-		secureRandom.nextBytes(iv);
+		final byte[] iv = SecurityUtils.generateNumber(16);
 		String iv64 = new String(Base64.encode(iv));
 		
 		
 		String msg = String.format("%s %s %s %s %s", TCPProtocol.RESPONSE_SUCCESS,
 								   clientChallenge, serverChallenge64, secretKey, iv64);
 		
+		// old clients don't offer capabilities and keep using Base64 lines
+		List<String> accepted = acceptCapabilities(tokens, 4);
+		boolean framed = accepted.contains(TCPProtocol.CAPABILITY_FRAMED);
+		if (!accepted.isEmpty()) msg += " " + TCPProtocol.joinCapabilities(accepted);
+		
 		// encrypt using client's public key
 		PublicKey clientKey = null;
 		try {
@@ -159,44 +518,158 @@ public class ConnectionHandler implements Runnable {
 		
 		client.getChannel().send(SecurityUtils.encryptRSA(msg.getBytes(), clientKey));
 		
+		// secure channel should be created now!
+		if (accepted.contains(TCPProtocol.CAPABILITY_AEAD)) {
+			clManager.secureConnectionAead(client, secretKey.getBytes(), iv64.getBytes(), true);
+		} else {
+			clManager.secureConnection(client, serverChallenge64.getBytes(), iv64.getBytes());
+		}
+		if (framed) clManager.enableFraming(client);
+		
+		// the next message completes the handshake
+		pendingLogin = new PendingLogin(name, tcpPort, serverChallenge);
+	}
+	
+	/**
+	 * @param tokens tokens of a !login or !resume message
+	 * @param index index of the optional capabilities token
+	 * @return the offered capabilities this connection supports
+	 */
+	private List<String> acceptCapabilities(String[] tokens, int index) {
+		List<String> accepted = new ArrayList<String>();
+		if (TCPProtocol.hasCapability(tokens, index, TCPProtocol.CAPABILITY_FRAMED)
+			&& client.getTransport() instanceof FramableChannel) {
+			accepted.add(TCPProtocol.CAPABILITY_FRAMED);
+		}
+		if (TCPProtocol.hasCapability(tokens, index, TCPProtocol.CAPABILITY_PIPELINE)) {
+			accepted.add(TCPProtocol.CAPABILITY_PIPELINE);
+		}
+		boolean aead = AEAD_SUPPORTED && TCPProtocol.hasCapability(tokens, index, TCPProtocol.CAPABILITY_AEAD);
+		if (aead) {
+			accepted.add(TCPProtocol.CAPABILITY_AEAD);
+		}
+		// sessions are only resumed over AES-GCM, see resume()
+		if (aead && tickets != null && TCPProtocol.hasCapability(tokens, index, TCPProtocol.CAPABILITY_RESUME)) {
+			accepted.add(TCPProtocol.CAPABILITY_RESUME);
+		}
+		if (TCPProtocol.hasCapability(tokens, index, TCPProtocol.CAPABILITY_BATCH)) {
+			accepted.add(TCPProtocol.CAPABILITY_BATCH);
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Sets up a new session from a resumption ticket, without RSA
+	 * @param tokens
+	 */
+	private void resume(String[] tokens) {
 		/* **************************************************************************************
-		 *                         Step 3: receive <server-challenge>
+		 *    Step 1: receive !resume <ticket-id> <client-nonce> <tcpPort> [capabilities]
 		 * **************************************************************************************/
-		// secure channel should be created now!
-		clManager.secureConnection(client, serverChallenge64.getBytes(), iv64.getBytes());
+		// the old cipher restarts its keystream for every message, resumed sessions use AES-GCM
+		boolean aead = AEAD_SUPPORTED && TCPProtocol.hasCapability(tokens, 4, TCPProtocol.CAPABILITY_AEAD);
+		if (tickets == null || tokens.length < 4 || isLoggedIn() || !aead) {
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		
+		ResumptionTickets.Ticket ticket = tickets.redeem(tokens[1]);
+		if (ticket == null || usManager.isLoggedIn(ticket.user)) {
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
 		
+		int tcpPort;
+		byte[] clientNonce;
 		try {
-			byte[] response = client.getChannel().read();
-			if (!Arrays.areEqual(Base64.decode(response), serverChallenge)) return;
-		} catch (IOException e) {
+			tcpPort = Integer.parseInt(tokens[3]);
+			clientNonce = Base64.decode(tokens[2]);
+		} catch (RuntimeException e) {
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		
+		/* **************************************************************************************
+		 *         Step 2: send !ok <server-nonce> <server-proof> [capabilities]
+		 * **************************************************************************************/
+		byte[] serverNonce = SecurityUtils.generateNumber(32);
+		byte[] serverProof = TCPProtocol.resumptionKey(ticket.secret, TCPProtocol.RESUME_SERVER_PROOF,
+														clientNonce, serverNonce);
+		
+		String msg = String.format("%s %s %s", TCPProtocol.RESPONSE_SUCCESS,
+								   new String(Base64.encode(serverNonce)), new String(Base64.encode(serverProof)));
+		
+		List<String> accepted = acceptCapabilities(tokens, 4);
+		if (!accepted.isEmpty()) msg += " " + TCPProtocol.joinCapabilities(accepted);
+		
+		clManager.sendMessage(client, msg);
+		
+		byte[] key = TCPProtocol.resumptionKey(ticket.secret, TCPProtocol.RESUME_KEY, clientNonce, serverNonce);
+		byte[] iv = new byte[16];
+		System.arraycopy(TCPProtocol.resumptionKey(ticket.secret, TCPProtocol.RESUME_IV, clientNonce, serverNonce),
+						 0, iv, 0, iv.length);
+		
+		clManager.secureConnectionAead(client, Base64.encode(key), Base64.encode(iv), true);
+		sessionSecret = key;
+		if (accepted.contains(TCPProtocol.CAPABILITY_FRAMED)) clManager.enableFraming(client);
+		
+		// the client proves it knows the ticket secret in the next message, like in the handshake
+		byte[] clientProof = TCPProtocol.resumptionKey(ticket.secret, TCPProtocol.RESUME_CLIENT_PROOF,
+														clientNonce, serverNonce);
+		pendingLogin = new PendingLogin(ticket.user, tcpPort, clientProof);
+	}
+	
+	private void issueTicket() {
+		User u = user;
+		// a ticket is of no use without AES-GCM, see resume()
+		if (tickets == null || u == null || !client.getCipherChannel().isAead()) {
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
+		// !ticket <id> <lifetime in seconds>, the secret is derived on both sides and never sent
+		ResumptionTickets.Ticket ticket = tickets.issue(u.getName(), sessionSecret);
+		clManager.sendMessage(client, String.format("%s %s %d", TCPProtocol.CMD_TICKET, ticket.id,
+													tickets.getLifetimeSeconds()));
+	}
+	
+	private void completeLogin(byte[] response) {
+		/* **************************************************************************************
+		 *                         Step 3: receive <server-challenge>
+		 * **************************************************************************************/
+		PendingLogin login = pendingLogin;
+		pendingLogin = null;
+		endHandshake();
+		
+		if (!Arrays.areEqual(Base64.decode(response), login.serverChallenge)) return;
+		
 		// handshake successful
 		if (isLoggedIn()) usManager.logout(user);
-		user = usManager.login(name, client);
-		user.setTcpPort(tcpPort);
+		user = usManager.login(login.name, client);
+		user.setTcpPort(login.tcpPort);
 	}
 	
 	private void logout(String[] tokens) {
 		usManager.logout(user);
-		clManager.unsecureConnection(client);
+		// still encrypted, the client drops its cipher after reading the reply
 		clManager.sendMessage(client, TCPProtocol.RESPONSE_SUCCESS);
+		clManager.unsecureConnection(client);
 		
 		user = null;
 	}
 	
-	private void createAuction(String[] tokens) {
+	private void createAuction(Request r, String[] tokens) {
 		// !create <duration> <description>
 		
-		// must be logged in
-		if (!isLoggedIn()) {
-			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+		// must be logged in, pipelined requests might see a concurrent logout
+		User owner = user;
+		if (owner == null) {
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
 		if (tokens.length < 3) {
-			usManager.sendMessage(user, TCPProtocol.RESPONSE_FAIL);
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
@@ -207,12 +680,12 @@ public class ConnectionHandler implements Runnable {
 			duration = Integer.valueOf(tokens[1]);
 		} catch (NumberFormatException e) {
 			logger.log(Level.INFO, "Invalid duration for new auction");
-			usManager.sendMessage(user, TCPProtocol.RESPONSE_FAIL);
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
 		if (duration < 1) {
-			usManager.sendMessage(user, TCPProtocol.RESPONSE_FAIL);
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
@@ -221,89 +694,169 @@ public class ConnectionHandler implements Runnable {
 			description += " " + tokens[i];
 		}
 		
-		Auction au = auManager.createAuction(user, description, duration);
+		Auction au = auManager.createAuction(owner, description, duration);
 		
-		String endDate = new SimpleDateFormat().format(au.getEndTime().getTime());
+		String endDate = new SimpleDateFormat().format(new Date(au.getEndMillis()));
 		String msg = String.format("%s %d %s", TCPProtocol.RESPONSE_SUCCESS, au.getId(), endDate);
-		usManager.sendMessage(user, msg);
+		r.reply(msg);
 	}
 	
-	private void listAuctions(String[] tokens) {
+	private void listAuctions(Request r, String[] tokens) {
+		// !list [limit=n] [sort=id|end|bid] [owner=name] [before=unixSeconds] [cursor=c]
+		AuctionQuery query = null;
+		if (tokens.length > 1) {
+			try {
+				query = AuctionQuery.parse(tokens);
+			} catch (IllegalArgumentException e) {
+				r.reply(TCPProtocol.RESPONSE_FAIL);
+				return;
+			}
+		}
+		
 		Key hmacKey = null;
 		
-		if (isLoggedIn()) {
-			String userName = user.getName();
+		// AES-GCM authenticates every message, the HMAC is only needed for the old cipher
+		User u = user;
+		if (u != null && !client.getCipherChannel().isAead()) {
+			String userName = u.getName();
 			
 			try {
-				String hmacKeyPath = clientKeyDir + userName + ".key";
-				hmacKey = SecurityUtils.getClientKey(hmacKeyPath);
+				hmacKey = keys.getHmacKey(userName);
 			} catch (IOException e) {
 				logger.log(Level.INFO, "Shared key of user " + userName + " could not be read.");
-				clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+				r.reply(TCPProtocol.RESPONSE_FAIL);
 				return;
 			}
 		}
 		
-		Collection<Auction> list = auManager.getAuctions();
-		List<GroupBid> groupBids = theGroup.getGroupBids();
-		SimpleDateFormat sdf = new SimpleDateFormat();
-
-		StringBuilder messageBuilder = new StringBuilder();
+		AuctionListCache.Rendering list;
+		String next = null;
+		if (query == null) {
+			list = listCache.get();
+		} else {
+			AuctionQuery.Page page = query.run(listCache.getOrdering(query.getSort()));
+			list = AuctionListCache.render(page.getAuctions());
+			next = page.getNext();
+		}
 		
-		String header = String.valueOf(list.size() + groupBids.size());
-		clManager.sendMessage(client, TCPProtocol.RESPONSE_SUCCESS);	
-		clManager.sendMessage(client, header);
-
-		messageBuilder.append(String.format("%s%n%s%n", TCPProtocol.RESPONSE_SUCCESS, header));
-		
-		for (Auction a : list) {
-			User bidder = a.getHighestBidder();
-			String bidderName = (bidder == null) ? "none" : bidder.getName();
-			String line = String.format("%d. '%s' by %s %s %.2f %s",
-					a.getId(),
-					a.getName(),
-					a.getOwner().getName(),
-					sdf.format(a.getEndTime().getTime()),
-					a.getHighestBid(),
-					bidderName);
+		List<GroupBid> groupBids;
+		synchronized(theGroup) {
+			// copy, so we don't hold the monitor while sending
+			groupBids = new ArrayList<GroupBid>(theGroup.getGroupBids());
+		}
+		// group bids come with the first page only
+		if (query != null && query.hasCursor()) groupBids.clear();
+		
+		// group bids are few and change without a new version, render them every time
+		List<String> groupLines = new ArrayList<String>(groupBids.size());
+		StringBuilder groupText = new StringBuilder();
+		for (GroupBid b : groupBids) {
+			int auctionId = b.getAuctionId();
+			Auction auction = auManager.getAuctionById(auctionId);
+			String line = String.format("Group bid on %d. '%s' by %s %.2f - %d confirms remaining",
+				auction.getId(), 
+				auction.getName(), 
+				b.getUser().getName(), 
+				b.getAmount(), 
+				b.getConfirmsRemaining());
 			
-			clManager.sendMessage(client, line);
-			messageBuilder.append(String.format("%s%n", line));
+			groupLines.add(line);
+			groupText.append(String.format("%s%n", line));
 		}
 		
-		synchronized(theGroup) {
-			for (GroupBid b : groupBids) {
-				int auctionId = b.getAuctionId();
-				Auction auction = auManager.getAuctionById(auctionId);
-				String line = String.format("Group bid on %d. '%s' by %s %.2f - %d confirms remaining",
-					auction.getId(), 
-					auction.getName(), 
-					b.getUser().getName(), 
-					b.getAmount(), 
-					b.getConfirmsRemaining());
-	
-				clManager.sendMessage(client, line);
-				messageBuilder.append(String.format("%s%n", line));
-			}
+		// the count, followed by the cursor of the next page if there is one
+		String header = String.valueOf(list.getCount() + groupLines.size());
+		if (next != null) header += " " + next;
+		
+		String hmac64 = null;
+		if (hmacKey != null) {
+			byte[] head = String.format("%s%n%s%n", TCPProtocol.RESPONSE_SUCCESS, header).getBytes();
+			byte[] hmac = SecurityUtils.hmacSHA256(hmacKey, head, list.getText(), groupText.toString().getBytes());
+			hmac64 = new String(Base64.encode(hmac));
 		}
 		
-		if (isLoggedIn()) {
-			sendHmac(messageBuilder.toString(), hmacKey);
+		if (!r.isTagged() && !client.isFramed()) {
+			// a message per line, like old clients expect
+			r.reply(TCPProtocol.RESPONSE_SUCCESS);
+			r.reply(header);
+			for (String line : list.getLines()) r.reply(line);
+			for (String line : groupLines) r.reply(line);
+			if (hmac64 != null) r.reply(hmac64);
+			return;
+		}
+		
+		// everything in a single message, lines separated by newlines
+		byte[] joined = list.getJoined();
+		byte[] group = groupText.toString().getBytes();
+		ByteBuffer msg = BufferPool.SHARED.acquire(MAX_RESPONSE * 2 + joined.length + group.length);
+		try {
+			r.putTag(msg);
+			BufferFormat.putAscii(msg, TCPProtocol.RESPONSE_SUCCESS).put((byte) '\n');
+			BufferFormat.putAscii(msg, header);
+			if (joined.length > 0) msg.put((byte) '\n').put(joined);
+			for (String line : groupLines) msg.put((byte) '\n').put(line.getBytes());
+			if (hmac64 != null) BufferFormat.putAscii(msg.put((byte) '\n'), hmac64);
+			msg.flip();
+			r.reply(msg);
+		} finally {
+			BufferPool.SHARED.release(msg);
 		}
 	}
 	
-	private void sendHmac(String message, Key key) {
-		byte[] hmac = SecurityUtils.hmacSHA256(message.getBytes(), key);
-		String hmac64 = new String(Base64.encode(hmac));
-		clManager.sendMessage(client, hmac64);
+	private void searchAuctions(Request r, String[] tokens) {
+		// !search [limit=n] word [prefix*]...
+		int limit = AuctionQuery.DEFAULT_LIMIT;
+		StringBuilder query = new StringBuilder();
+		for (int i = 1; i < tokens.length; i++) {
+			if (tokens[i].startsWith("limit=")) {
+				try {
+					limit = Integer.parseInt(tokens[i].substring("limit=".length()));
+				} catch (NumberFormatException e) {
+					limit = -1;
+				}
+				if (limit < 1 || limit > AuctionQuery.MAX_LIMIT) {
+					r.reply(TCPProtocol.RESPONSE_FAIL);
+					return;
+				}
+			} else {
+				query.append(tokens[i]).append(' ');
+			}
+		}
+		if (query.length() == 0) {
+			r.reply(TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		
+		AuctionListCache.Rendering found = AuctionListCache.render(auManager.search(query.toString(), limit));
+		String header = String.valueOf(found.getCount());
+		
+		if (!r.isTagged() && !client.isFramed()) {
+			r.reply(TCPProtocol.RESPONSE_SUCCESS);
+			r.reply(header);
+			for (String line : found.getLines()) r.reply(line);
+			return;
+		}
+		
+		byte[] joined = found.getJoined();
+		ByteBuffer msg = BufferPool.SHARED.acquire(MAX_RESPONSE * 2 + joined.length);
+		try {
+			r.putTag(msg);
+			BufferFormat.putAscii(msg, TCPProtocol.RESPONSE_SUCCESS).put((byte) '\n');
+			BufferFormat.putAscii(msg, header);
+			if (joined.length > 0) msg.put((byte) '\n').put(joined);
+			msg.flip();
+			r.reply(msg);
+		} finally {
+			BufferPool.SHARED.release(msg);
+		}
 	}
-
-	private void bid(String[] tokens) {
+	
+	private void bid(Request r, String[] tokens) {
 		// !bid #id #amount
 		
 		// need to be logged in
 		if (!isLoggedIn()) {
-			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
@@ -313,27 +866,64 @@ public class ConnectionHandler implements Runnable {
 			id = Integer.valueOf(tokens[1]);
 			amount = Double.valueOf(tokens[2]);
 		} catch(NumberFormatException e) {
-			usManager.sendMessage(user, TCPProtocol.RESPONSE_FAIL);
+			r.reply(TCPProtocol.RESPONSE_FAIL);
+			return;
+		}
+		
+		bid(r, id, amount);
+	}
+	
+	private void bid(Request r, CommandTokenizer args) {
+		// !bid #id #amount
+		int id = args.nextInt();
+		double amount = args.nextAmount();
+		
+		// leave anything unusual to the String parser
+		if (id < 0 || Double.isNaN(amount) || !args.atEnd()) {
+			bid(r, args.tokens());
+			return;
+		}
+		
+		bid(r, id, amount);
+	}
+	
+	private void bid(Request r, int id, double amount) {
+		// need to be logged in
+		User bidder = user;
+		if (bidder == null) {
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
 		if (amount < 0.01) {
-			usManager.sendMessage(user, TCPProtocol.RESPONSE_FAIL);
+			r.reply(TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
 		Auction auction = auManager.getAuctionById(id);
 		if (auction == null || auction.hasEnded()) {
-			usManager.sendMessage(user, TCPProtocol.RESPONSE_NO_AUCTION);
+			r.reply(TCPProtocol.RESPONSE_NO_AUCTION);
 			return;
 		}
 		
-		boolean success = auManager.bid(user, auction, amount);
-		String msg = (success) ? TCPProtocol.RESPONSE_SUCCESS : TCPProtocol.RESPONSE_FAIL;
-		msg += String.format(" %.2f %s", auction.getHighestBid(), auction.getName());
-		usManager.sendMessage(user, msg);
+		boolean success = auManager.bid(bidder, auction, amount);
+		
+		// [#tag] <!ok|!fail> <highest bid> <name>
+		ByteBuffer msg = BufferPool.SHARED.acquire(MAX_RESPONSE + auction.getNameLength());
+		try {
+			r.putTag(msg);
+			BufferFormat.putAscii(msg, success ? TCPProtocol.RESPONSE_SUCCESS : TCPProtocol.RESPONSE_FAIL);
+			msg.put((byte) ' ');
+			BufferFormat.putAmount(msg, auction.getHighestBid());
+			msg.put((byte) ' ');
+			auction.putName(msg);
+			msg.flip();
+			r.reply(msg);
+		} finally {
+			BufferPool.SHARED.release(msg);
+		}
 	}
-
+	
 	private void groupBid(String[] tokens) {
 		// !groupBid #id #amount
 		
@@ -410,29 +1000,66 @@ public class ConnectionHandler implements Runnable {
 	}
 
 	private void signedBid(String[] tokens) {
-		int id;
-		double bid;
-		String sign1, sign2;
-		try {
-			id = Integer.valueOf(tokens[1]);
-			bid = Double.valueOf(tokens[2]);
-			sign1 = tokens[3];
-			sign2 = tokens[4];
-		} catch (NumberFormatException e) {
+		SignedBid bid = SignedBid.parse(tokens);
+		if (bid == null) return;
+		
+		long time = validateSignatures(bid.auctionId, bid.amount, bid.signature1, bid.signature2);
+		applySignedBid(bid, time);
+	}
+	
+	/**
+	 * Handles signed bids collected while the server was unreachable
+	 * @param lines !signedBids <count>, followed by a !signedBid command per line
+	 */
+	private void signedBids(String[] lines) {
+		if (!isLoggedIn()) {
+			clManager.sendMessage(client, TCPProtocol.RESPONSE_FAIL);
 			return;
 		}
 		
-		long time = validateSignatures(id, bid, sign1, sign2);
+		// start checking every signature before waiting for the first one
+		List<SignedBid> bids = new ArrayList<SignedBid>(lines.length);
+		int rejected = 0;
+		for (int i = 1; i < lines.length; i++) {
+			SignedBid bid = SignedBid.parse(lines[i].split(" "));
+			if (bid == null) {
+				rejected++;
+				continue;
+			}
+			
+			bid.validation1 = validateLater(bid.auctionId, bid.amount, bid.signature1);
+			bid.validation2 = validateLater(bid.auctionId, bid.amount, bid.signature2);
+			bids.add(bid);
+		}
+		
+		for (SignedBid bid : bids) bid.time = signatureTime(bid.validation1, bid.validation2);
+		
+		// apply the bids of each auction in the order they were placed
+		Collections.sort(bids, SignedBid.BY_AUCTION_AND_TIME);
+		int accepted = 0;
+		for (SignedBid bid : bids) {
+			if (applySignedBid(bid, bid.time)) accepted++;
+			else rejected++;
+		}
 		
+		clManager.sendMessage(client, String.format("%s %d %d", TCPProtocol.RESPONSE_SUCCESS, accepted, rejected));
+	}
+	
+	/**
+	 * @param bid
+	 * @param time timestamp of the signatures, negative if they are invalid
+	 * @return true, if the bid was placed
+	 */
+	private boolean applySignedBid(SignedBid bid, long time) {
 		boolean bidSuccessful = true;
 		
 		// validation unsuccessful
 		if (time < 0) bidSuccessful = false;
 		
 		
-		Auction auction = auManager.getAuctionById(id);
-		if (bidSuccessful && auction != null && time < auction.getEndTime().getTimeInMillis())
-			bidSuccessful = auManager.bid(user, auction, bid);
+		Auction auction = auManager.getAuctionById(bid.auctionId);
+		if (bidSuccessful && auction != null && time < auction.getEndMillis())
+			bidSuccessful = auManager.bid(user, auction, bid.amount);
 		else
 			bidSuccessful = false;
 		
@@ -445,21 +1072,54 @@ public class ConnectionHandler implements Runnable {
 		} else {
 			String auctionName = (auction == null) ? "(Not existing)" : auction.getName();
 			String s = String.format("Rejected signed bid: For auction \"%s\", %.2f (%s)",
-					auctionName, bid, user.getName());
+					auctionName, bid.amount, user.getName());
 			logger.log(Level.INFO, s);
 		}
+		return bidSuccessful;
 	}
 	
 	private long validateSignatures(int id, double bid, String signature1, String signature2) {
-		long time1 = validateSignature(id, bid, signature1);
+		// with a crypto executor both signatures are checked at the same time
+		return signatureTime(validateLater(id, bid, signature1), validateLater(id, bid, signature2));
+	}
+	
+	/**
+	 * @return the average timestamp of both signatures, -1 or -2 if the first or second is invalid
+	 */
+	private static long signatureTime(Future<Long> validation1, Future<Long> validation2) {
+		long time1 = CryptoExecutor.await(validation1);
+		long time2 = CryptoExecutor.await(validation2);
 		if (time1 < 0) return -1;
-		
-		long time2 = validateSignature(id, bid, signature2);
 		if (time2 < 0) return -2;
 		
 		return (time1 + time2) / 2;
 	}
 	
+	/**
+	 * Checks a signature on the crypto executor, or right away if there is none or it is saturated
+	 * @return the timestamp of the signature, negative if invalid
+	 */
+	private Future<Long> validateLater(final int id, final double bid, final String signature) {
+		Callable<Long> task = new Callable<Long>() {
+			public Long call() {
+				return validateSignature(id, bid, signature);
+			}
+		};
+		
+		CryptoExecutor crypto = cryptoExecutor;
+		if (crypto != null) {
+			try {
+				return crypto.submit(task);
+			} catch (RejectedExecutionException e) {
+				// signed bids are not sent again, so check them here
+			}
+		}
+		
+		FutureTask<Long> validation = new FutureTask<Long>(task);
+		validation.run();
+		return validation;
+	}
+	
 	private long validateSignature(int id, double bid, String signature) {
 		String[] tokens = signature.split(":");
 		if (tokens.length != 3) return -1;
@@ -525,10 +1185,127 @@ public class ConnectionHandler implements Runnable {
 	}
 	
 	private PublicKey getPublicKey(String username) throws IOException {
-		return SecurityUtils.getPublicKey(clientKeyDir + username + ".pub.pem");	
+		return keys.getPublicKey(username);
 	}
 
 	private boolean isLoggedIn() {
 		return user != null;
 	}
+	
+	/**
+	 * A command received from the client, and where its responses go.
+	 * 
+	 * Commands may be tagged with a correlation id, like "#42 !bid 1 10.00". Responses to a
+	 * tagged command carry the same tag and are sent as a single message, lines separated by
+	 * newlines. Tagged !bid, !list and !create are run concurrently and may be answered out of
+	 * order, all other messages wait for them and are handled in the order they were received.
+	 */
+	static class Request {
+		private final ConnectionHandler handler;
+		private final String tag;
+		private StringBuilder lines;
+		
+		Request(ConnectionHandler handler, String tag) {
+			this.handler = handler;
+			this.tag = tag;
+		}
+		
+		boolean isTagged() {
+			return tag != null;
+		}
+		
+		void reply(String message) {
+			if (tag == null) {
+				handler.clManager.sendMessage(handler.client, message);
+				return;
+			}
+			
+			if (lines == null) {
+				lines = new StringBuilder(tag).append(' ');
+			} else {
+				lines.append('\n');
+			}
+			lines.append(message);
+		}
+		
+		/**
+		 * Sends a single message response right away, the tag must have been put with putTag()
+		 * @param message
+		 */
+		void reply(ByteBuffer message) {
+			handler.clManager.sendMessage(handler.client, message);
+		}
+		
+		/**
+		 * Starts a buffer response with the tag, if there is one
+		 * @param buf
+		 */
+		void putTag(ByteBuffer buf) {
+			if (tag == null) return;
+			BufferFormat.putAscii(buf, tag);
+			buf.put((byte) ' ');
+		}
+		
+		/**
+		 * Sends the collected response of a tagged command
+		 */
+		void finish() {
+			if (lines != null) handler.clManager.sendMessage(handler.client, lines.toString());
+			lines = null;
+		}
+	}
+	
+	/**
+	 * A !signedBid command: <auction> <amount> <user:time:signature> <user:time:signature>
+	 */
+	private static class SignedBid {
+		static final Comparator<SignedBid> BY_AUCTION_AND_TIME = new Comparator<SignedBid>() {
+			public int compare(SignedBid a, SignedBid b) {
+				if (a.auctionId != b.auctionId) return (a.auctionId < b.auctionId) ? -1 : 1;
+				return (a.time < b.time) ? -1 : ((a.time == b.time) ? 0 : 1);
+			}
+		};
+		
+		private final int auctionId;
+		private final double amount;
+		private final String signature1, signature2;
+		private Future<Long> validation1, validation2;
+		private long time;
+		
+		private SignedBid(int auctionId, double amount, String signature1, String signature2) {
+			this.auctionId = auctionId;
+			this.amount = amount;
+			this.signature1 = signature1;
+			this.signature2 = signature2;
+		}
+		
+		/**
+		 * @param tokens tokens of a !signedBid command
+		 * @return the bid, null if the command is malformed
+		 */
+		static SignedBid parse(String[] tokens) {
+			if (tokens.length < 5) return null;
+			
+			try {
+				return new SignedBid(Integer.valueOf(tokens[1]), Double.valueOf(tokens[2]), tokens[3], tokens[4]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * State of a handshake waiting for the client to return the server challenge
+	 */
+	private static class PendingLogin {
+		private final String name;
+		private final int tcpPort;
+		private final byte[] serverChallenge;
+		
+		public PendingLogin(String name, int tcpPort, byte[] serverChallenge) {
+			this.name = name;
+			this.tcpPort = tcpPort;
+			this.serverChallenge = serverChallenge;
+		}
+	}
 }
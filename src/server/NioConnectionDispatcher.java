@@ -0,0 +1,283 @@
+package server;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.PrivateKey;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import server.bean.Client;
+import server.bean.Group;
+import server.service.AuctionManager;
+import server.service.ClientManager;
+import server.service.UserManager;
+import util.CryptoExecutor;
+import util.HandlerExecutors;
+import util.KeyStoreCache;
+import channels.NioChannel;
+
+
+/**
+ * Accepts connections on a socket and multiplexes them over a few selector threads.
+ *
+ * The selector threads only read and frame incoming lines. Complete messages are
+ * handed to the ConnectionHandler of the connection on a worker thread, at most one
+ * worker per connection at a time, so messages of a client are processed in order.
+ * Idle connections don't occupy a thread.
+ */
+public class NioConnectionDispatcher implements Runnable {
+	private Logger logger = Logger.getLogger(this.getClass().getName());
+
+	private ServerSocket socket;
+	private ClientManager  clManager;
+	private UserManager    usManager;
+	private AuctionManager auManager;
+	private Group          theGroup;
+	private PrivateKey     privateKey;
+	private KeyStoreCache  keys;
+	private int            selectorThreads;
+	private String         executorMode;
+	private AuctionListCache listCache;
+	private AdmissionControl admission;
+	private ResumptionTickets tickets;
+	private CryptoExecutor cryptoExecutor;
+
+	private ExecutorService workers;
+
+	public NioConnectionDispatcher(ServerSocket socket, ClientManager clManager, UserManager usManager,
+								   AuctionManager auManager, Group group, PrivateKey privateKey, KeyStoreCache keys,
+								   int selectorThreads, String executorMode, AdmissionControl admission) {
+		if (socket.getChannel() == null) throw new IllegalArgumentException("Socket must be opened by a ServerSocketChannel");
+		if (selectorThreads < 1) throw new IllegalArgumentException("Need at least one selector thread");
+
+		this.socket = socket;
+		this.clManager = clManager;
+		this.usManager = usManager;
+		this.auManager = auManager;
+		this.theGroup = group;
+		this.privateKey = privateKey;
+		this.keys = keys;
+		this.selectorThreads = selectorThreads;
+		this.executorMode = executorMode;
+		this.admission = admission;
+		this.listCache = new AuctionListCache(auManager);
+	}
+
+	/**
+	 * @param tickets store for resumption tickets, null to disable resumption
+	 */
+	public void setResumptionTickets(ResumptionTickets tickets) {
+		this.tickets = tickets;
+	}
+	
+	/**
+	 * @param executor runs RSA decryption and signature checks, null to run them on the handler threads
+	 */
+	public void setCryptoExecutor(CryptoExecutor executor) {
+		this.cryptoExecutor = executor;
+	}
+	
+	@Override
+	public void run() {
+		ServerSocketChannel serverChannel = socket.getChannel();
+		workers = HandlerExecutors.newExecutor(executorMode);
+
+		SelectorLoop[] loops = new SelectorLoop[selectorThreads];
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new SelectorLoop();
+				new Thread(loops[i], "selector-" + i).start();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not open selector: " + e.getMessage());
+			shutdown(loops);
+			return;
+		}
+
+		// Listen to Connections
+		int next = 0;
+		while (true) {
+			try {
+				SocketChannel clientChannel = serverChannel.accept();
+				long acceptedAt = System.nanoTime();
+
+				if (admission != null && !admission.admit(clientChannel.socket().getInetAddress())) {
+					AdmissionControl.refuse(clientChannel);
+					continue;
+				}
+
+				NioChannel channel = new NioChannel(clientChannel);
+				Client client = clManager.newClient(channel, channel.getInetAddress());
+				if (client == null) {
+					if (admission != null) admission.closed();
+					channel.close();
+					continue;
+				}
+
+				ConnectionHandler handler = new ConnectionHandler(client, clManager, usManager,
+																  auManager, theGroup, privateKey, keys, listCache);
+				handler.setRequestExecutor(workers);
+				handler.setAdmissionControl(admission, acceptedAt);
+				handler.setResumptionTickets(tickets);
+				handler.setCryptoExecutor(cryptoExecutor);
+
+				// distribute connections round robin
+				loops[next].register(new Connection(channel, client, handler));
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
+				// Socket closed, break out of run loop
+				break;
+			}
+		}
+
+		shutdown(loops);
+	}
+
+	private void shutdown(SelectorLoop[] loops) {
+		for (SelectorLoop loop : loops) {
+			if (loop != null) loop.close();
+		}
+
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Waits for readiness of its connections and reads/writes them
+	 */
+	private class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Connection> registrations;
+		private volatile boolean running;
+
+		public SelectorLoop() throws IOException {
+			selector = Selector.open();
+			registrations = new ConcurrentLinkedQueue<Connection>();
+			running = true;
+		}
+
+		public void register(Connection connection) {
+			registrations.add(connection);
+			selector.wakeup();
+		}
+
+		public void close() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Selector failed: " + e.getMessage());
+					break;
+				}
+
+				Connection c;
+				while ((c = registrations.poll()) != null) {
+					c.register(selector);
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					((Connection) key.attachment()).ready(key);
+				}
+			}
+
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.log(Level.INFO, "Selector could not be closed");
+			}
+		}
+	}
+
+	/**
+	 * A single client connection.
+	 * Runs as a task on the worker pool whenever messages are pending.
+	 */
+	private class Connection implements Runnable {
+		private final NioChannel channel;
+		private final Client client;
+		private final ConnectionHandler handler;
+		private final AtomicBoolean scheduled;
+
+		public Connection(NioChannel channel, Client client, ConnectionHandler handler) {
+			this.channel = channel;
+			this.client = client;
+			this.handler = handler;
+			scheduled = new AtomicBoolean(false);
+		}
+
+		public void register(Selector selector) {
+			try {
+				SelectionKey key = channel.getSocketChannel().register(selector, SelectionKey.OP_READ, this);
+				channel.setSelectionKey(key);
+				handler.started();
+			} catch (IOException e) {
+				channel.endOfStream();
+				schedule();
+			}
+		}
+
+		public void ready(SelectionKey key) {
+			try {
+				if (key.isReadable()) {
+					int frames = channel.readFrames();
+					if (frames < 0) key.cancel();
+					if (frames != 0) schedule();
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					channel.flush();
+				}
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Client disconnected");
+				key.cancel();
+				channel.endOfStream();
+				schedule();
+			}
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				workers.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				try {
+					while (channel.hasFrame()) {
+						if (!handler.processNext()) {
+							handler.disconnected();
+							return;
+						}
+					}
+				} catch (IOException e) {
+					logger.log(Level.FINE, "Client disconnected");
+					handler.disconnected();
+					return;
+				} finally {
+					scheduled.set(false);
+				}
+
+				// messages might have arrived after the last check
+			} while (channel.hasFrame() && scheduled.compareAndSet(false, true));
+		}
+	}
+}
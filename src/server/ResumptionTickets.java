@@ -0,0 +1,126 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import util.SecurityUtils;
+import client.TCPProtocol;
+
+/**
+ * Tickets letting a client that logged in before set up a new session
+ * without the RSA handshake.
+ *
+ * A ticket consists of a random id and a secret derived from the id and
+ * the secret of the session it was issued in, see TCPProtocol.ticketSecret().
+ * Only the id is sent, the secret never goes over the wire. The client later
+ * presents the id with !resume, both sides derive the new session key from
+ * the secret, see TCPProtocol.resume(). Tickets are only issued and redeemed
+ * on AES-GCM channels, the old cipher repeats its keystream for every message.
+ *
+ * Tickets can be redeemed once and expire after their lifetime; at most
+ * maxTickets are kept, the oldest ones are dropped first.
+ */
+public class ResumptionTickets {
+	public static final int ID_SIZE     = 16;
+
+	private final int maxTickets;
+	private final long lifetime;
+	private final LinkedHashMap<String, Ticket> tickets;
+
+	private long issued;
+	private long redeemed;
+	private long rejected;
+
+	/**
+	 * @param maxTickets tickets kept at most
+	 * @param lifetimeMillis time a ticket stays valid
+	 */
+	public ResumptionTickets(final int maxTickets, long lifetimeMillis) {
+		this.maxTickets = maxTickets;
+		this.lifetime = lifetimeMillis;
+
+		tickets = new LinkedHashMap<String, Ticket>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+				return size() > ResumptionTickets.this.maxTickets;
+			}
+		};
+	}
+
+	/**
+	 * @param user the user who completed a handshake
+	 * @param sessionSecret secret shared with the client in the current session
+	 * @return a new ticket for the user
+	 */
+	public Ticket issue(String user, byte[] sessionSecret) {
+		String id = new String(Base64.encode(SecurityUtils.generateNumber(ID_SIZE)));
+		byte[] secret = TCPProtocol.ticketSecret(sessionSecret, id);
+		Ticket ticket = new Ticket(id, user, secret, System.currentTimeMillis() + lifetime);
+
+		synchronized (this) {
+			tickets.put(ticket.id, ticket);
+			issued++;
+		}
+		return ticket;
+	}
+
+	/**
+	 * Removes a ticket, so it cannot be used again
+	 * @param id Base64 encoded id of the ticket
+	 * @return the ticket, null if it is unknown or expired
+	 */
+	public synchronized Ticket redeem(String id) {
+		Ticket ticket = tickets.remove(id);
+		if (ticket == null || ticket.expires < System.currentTimeMillis()) {
+			rejected++;
+			return null;
+		}
+
+		redeemed++;
+		return ticket;
+	}
+
+	/**
+	 * @return lifetime of new tickets in seconds
+	 */
+	public long getLifetimeSeconds() {
+		return lifetime / 1000;
+	}
+
+	public synchronized int size() {
+		return tickets.size();
+	}
+
+	public synchronized long getIssued() {
+		return issued;
+	}
+
+	public synchronized long getRedeemed() {
+		return redeemed;
+	}
+
+	/**
+	 * @return number of unknown, expired or reused tickets presented
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	public static class Ticket {
+		public final String id; /** Base64 encoded */
+		public final String user;
+		public final byte[] secret;
+		public final long expires;
+
+		Ticket(String id, String user, byte[] secret, long expires) {
+			this.id = id;
+			this.user = user;
+			this.secret = secret;
+			this.expires = expires;
+		}
+	}
+}
@@ -1,67 +1,156 @@
 package server.bean;
 
+import java.nio.ByteBuffer;
 import java.util.Calendar;
 
+/**
+ * An auction, as a view of its row in the AuctionTable.
+ * Views are created by the table; two views of the same auction are equal.
+ */
 public class Auction {
-	private int id;
-	private User owner;
-	private String name;
-	private Calendar endTime;
-	private User highestBidder;
-	private double highestBid;
-	private boolean groupBidFlag; 
+	private final AuctionTable table;
+	private final int id;
+	
+	Auction(AuctionTable table, int id) {
+		this.table = table;
+		this.id = id;
+	}
 	
 	public int getId() {
 		return id;
 	}
-	public void setId(int id) {
-		this.id = id;
-	}
 	public User getOwner() {
-		return owner;
-	}
-	public void setOwner(User owner) {
-		this.owner = owner;
+		return table.owner(id);
 	}
 	public String getName() {
-		return name;
+		return table.name(id);
 	}
-	public void setName(String name) {
-		this.name = name;
+	/**
+	 * @return length of the name encoded like in messages to the client
+	 */
+	public int getNameLength() {
+		return table.nameLength(id);
+	}
+	/**
+	 * Puts the name encoded like in messages to the client, without copying it first
+	 */
+	public void putName(ByteBuffer buffer) {
+		table.putName(id, buffer);
 	}
+	/**
+	 * @return a new Calendar set to the end time
+	 */
 	public Calendar getEndTime() {
-		return endTime;
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(getEndMillis());
+		return calendar;
 	}
-	public void setEndTime(Calendar endTime) {
-		this.endTime = endTime;
+	/**
+	 * @return end time in milliseconds since the epoch
+	 */
+	public long getEndMillis() {
+		return table.endMillis(id);
 	}
 	public User getHighestBidder() {
-		return highestBidder;
-	}
-	public void setHighestBidder(User highestBidder) {
-		this.highestBidder = highestBidder;
+		return getBidState().getBidder();
 	}
 	public double getHighestBid() {
-		return highestBid;
+		return getBidState().getAmount();
+	}
+	/**
+	 * @return highest bid and bidder, read together
+	 */
+	public BidState getBidState() {
+		return table.unpack(table.bid(id));
 	}
-	public void setHighestBid(double highestBid) {
-		this.highestBid = highestBid;
+	/**
+	 * @param expected a state returned by getBidState()
+	 * @param update
+	 * @return true, if the highest bid was still expected and has been replaced
+	 * @throws IllegalArgumentException if the amount is out of range, see AuctionTable.MAX_CENTS
+	 */
+	public boolean compareAndSetBidState(BidState expected, BidState update) {
+		if (expected.getPacked() < 0) return false;
+		return table.compareAndSetBid(id, expected.getPacked(), table.pack(update));
 	}
 	
 	public boolean hasEnded() {
-		return getEndTime().getTimeInMillis() <= System.currentTimeMillis();
+		return getEndMillis() <= System.currentTimeMillis();
 	}
 	/**
 	 * @return the hasGroupBid
 	 */
 	public boolean hasGroupBid() {
-		return groupBidFlag;
+		return (table.flags(id) & AuctionTable.FLAG_GROUP_BID) != 0;
+	}
+	/**
+	 * Marks the auction as having a group bid
+	 * @return true, if it had none before
+	 */
+	public boolean setGroupBid() {
+		return table.setFlag(id, AuctionTable.FLAG_GROUP_BID);
 	}
 	/**
-	 * @param hasGroupBid the hasGroupBid to set
+	 * @return true, if the auction has been closed
 	 */
-	public void setGroupBid(boolean hasGroupBid) {
-		this.groupBidFlag = hasGroupBid;
+	public boolean isClosed() {
+		return (table.flags(id) & AuctionTable.FLAG_CLOSED) != 0;
+	}
+	/**
+	 * Marks the auction as closed
+	 * @return true for the first call only
+	 */
+	public boolean markClosed() {
+		return table.setFlag(id, AuctionTable.FLAG_CLOSED);
+	}
+	/**
+	 * Records the outcome of billing the closed auction
+	 * @param success false, if billing was given up
+	 */
+	public void recordBilling(boolean success) {
+		table.setFlag(id, success ? AuctionTable.FLAG_BILLED : AuctionTable.FLAG_BILLING_FAILED);
+	}
+	/**
+	 * @return true, if the owner has been billed
+	 */
+	public boolean isBilled() {
+		return (table.flags(id) & AuctionTable.FLAG_BILLED) != 0;
+	}
+	/**
+	 * @return true, if billing was given up
+	 */
+	public boolean hasBillingFailed() {
+		return (table.flags(id) & AuctionTable.FLAG_BILLING_FAILED) != 0;
+	}
+	/**
+	 * Records the outcome of reporting the close to analytics
+	 * @param success false, if reporting was given up
+	 */
+	public void recordReport(boolean success) {
+		table.setFlag(id, success ? AuctionTable.FLAG_REPORTED : AuctionTable.FLAG_REPORT_FAILED);
+	}
+	/**
+	 * @return true, if analytics received the end of the auction
+	 */
+	public boolean isReported() {
+		return (table.flags(id) & AuctionTable.FLAG_REPORTED) != 0;
+	}
+	/**
+	 * @return true, if reporting to analytics was given up
+	 */
+	public boolean hasReportFailed() {
+		return (table.flags(id) & AuctionTable.FLAG_REPORT_FAILED) != 0;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Auction)) return false;
+		Auction other = (Auction) o;
+		return other.table == table && other.id == id;
 	}
 	
+	@Override
+	public int hashCode() {
+		return id;
+	}
 }
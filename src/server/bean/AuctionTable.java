@@ -0,0 +1,240 @@
+package server.bean;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage of all auctions, one row per auction id, field by field.
+ *
+ * Ids are handed out consecutively, so rows are addressed by id directly, in
+ * chunks of CHUNK_SIZE rows allocated on first use. Each field is a primitive
+ * array per chunk: end time in epoch milliseconds, highest bid and bidder
+ * packed into one long, owner, flags and the position of the name in the
+ * chunk's name bytes. Users are stored as indexes into a table of their own.
+ * A row takes about 32 bytes plus its name, scans over many auctions read
+ * consecutive memory.
+ *
+ * Auction objects are views of a row. Rows are written once by add(), only
+ * bid and flags change later, both atomically.
+ */
+public class AuctionTable {
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	static final int FLAG_EXISTS    = 1;
+	static final int FLAG_GROUP_BID = 2;
+	static final int FLAG_CLOSED    = 4;
+	static final int FLAG_BILLED         = 8;
+	static final int FLAG_BILLING_FAILED = 16;
+	static final int FLAG_REPORTED       = 32;
+	static final int FLAG_REPORT_FAILED  = 64;
+
+	private static final int BIDDER_BITS = 24;
+	private static final long BIDDER_MASK = (1L << BIDDER_BITS) - 1;
+	public static final long MAX_CENTS = (1L << (64 - BIDDER_BITS - 1)) - 1; /** Highest bid that fits, in cents */
+
+	private volatile AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<Chunk>(16);
+	private volatile int size;
+
+	private final ConcurrentHashMap<User, Integer> userIndexes = new ConcurrentHashMap<User, Integer>();
+	private volatile User[] users = new User[64]; /** By index, 0 is nobody */
+	private int userCount = 1;
+
+	/**
+	 * Writes the row of a new auction
+	 * @param id an id without a row yet
+	 * @param owner
+	 * @param name
+	 * @param endMillis end time in milliseconds since the epoch
+	 * @return a view of the row
+	 */
+	public synchronized Auction add(int id, User owner, String name, long endMillis) {
+		int index = id >>> CHUNK_BITS;
+
+		AtomicReferenceArray<Chunk> directory = chunks;
+		if (index >= directory.length()) {
+			AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<Chunk>(Math.max(index + 1, directory.length() * 2));
+			for (int i = 0; i < directory.length(); i++) grown.set(i, directory.get(i));
+			chunks = directory = grown;
+		}
+
+		Chunk chunk = directory.get(index);
+		if (chunk == null) {
+			chunk = new Chunk();
+			directory.set(index, chunk);
+		}
+
+		int row = id & CHUNK_MASK;
+		if ((chunk.flags.get(row) & FLAG_EXISTS) != 0) throw new IllegalArgumentException("Auction " + id + " exists");
+
+		byte[] bytes = name.getBytes();
+		byte[] names = chunk.names;
+		if (chunk.namesUsed + bytes.length > names.length) {
+			names = Arrays.copyOf(names, Math.max(names.length * 2, chunk.namesUsed + bytes.length));
+		}
+		System.arraycopy(bytes, 0, names, chunk.namesUsed, bytes.length);
+		chunk.nameStart[row] = chunk.namesUsed;
+		chunk.nameLength[row] = bytes.length;
+		chunk.namesUsed += bytes.length;
+		chunk.names = names;
+
+		chunk.endTimes[row] = endMillis;
+		chunk.owners[row] = indexOf(owner);
+		chunk.bids.set(row, 0);
+		// written last, readers check it before anything else
+		chunk.flags.set(row, FLAG_EXISTS);
+		size++;
+
+		return new Auction(this, id);
+	}
+
+	/**
+	 * @param id
+	 * @return a view of the auction, null if there is none with the id
+	 */
+	public Auction get(int id) {
+		return exists(id) ? new Auction(this, id) : null;
+	}
+
+	/**
+	 * @return number of auctions ever added
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of distinct owners and bidders
+	 */
+	public synchronized int getUserCount() {
+		return userCount - 1;
+	}
+
+	boolean exists(int id) {
+		if (id < 0) return false;
+
+		AtomicReferenceArray<Chunk> directory = chunks;
+		int index = id >>> CHUNK_BITS;
+		if (index >= directory.length()) return false;
+
+		Chunk chunk = directory.get(index);
+		return chunk != null && (chunk.flags.get(id & CHUNK_MASK) & FLAG_EXISTS) != 0;
+	}
+
+	/** Rows of existing auctions only, see exists() */
+	private Chunk chunk(int id) {
+		return chunks.get(id >>> CHUNK_BITS);
+	}
+
+	long endMillis(int id) {
+		return chunk(id).endTimes[id & CHUNK_MASK];
+	}
+
+	User owner(int id) {
+		return user(chunk(id).owners[id & CHUNK_MASK]);
+	}
+
+	String name(int id) {
+		Chunk chunk = chunk(id);
+		byte[] names = chunk.names;
+		int row = id & CHUNK_MASK;
+		return new String(names, chunk.nameStart[row], chunk.nameLength[row]);
+	}
+
+	int nameLength(int id) {
+		return chunk(id).nameLength[id & CHUNK_MASK];
+	}
+
+	void putName(int id, ByteBuffer buffer) {
+		Chunk chunk = chunk(id);
+		byte[] names = chunk.names;
+		int row = id & CHUNK_MASK;
+		buffer.put(names, chunk.nameStart[row], chunk.nameLength[row]);
+	}
+
+	long bid(int id) {
+		return chunk(id).bids.get(id & CHUNK_MASK);
+	}
+
+	boolean compareAndSetBid(int id, long expected, long update) {
+		return chunk(id).bids.compareAndSet(id & CHUNK_MASK, expected, update);
+	}
+
+	int flags(int id) {
+		return chunk(id).flags.get(id & CHUNK_MASK);
+	}
+
+	/**
+	 * @return true, if the flag was not set before
+	 */
+	boolean setFlag(int id, int flag) {
+		AtomicIntegerArray flags = chunk(id).flags;
+		int row = id & CHUNK_MASK;
+		while (true) {
+			int current = flags.get(row);
+			if ((current & flag) != 0) return false;
+			if (flags.compareAndSet(row, current, current | flag)) return true;
+		}
+	}
+
+	/**
+	 * @param bid packed bid
+	 * @return the bid as BidState
+	 */
+	BidState unpack(long bid) {
+		if (bid == 0) return BidState.NONE;
+		return new BidState((bid >>> BIDDER_BITS) / 100.0, user((int) (bid & BIDDER_MASK)), bid);
+	}
+
+	/**
+	 * @param state
+	 * @return the bid packed into a long
+	 * @throws IllegalArgumentException if the amount is too high
+	 */
+	long pack(BidState state) {
+		long cents = Math.round(state.getAmount() * 100);
+		if (cents < 0 || cents > MAX_CENTS) throw new IllegalArgumentException("Bid out of range: " + state.getAmount());
+
+		int bidder = (state.getBidder() == null) ? 0 : indexOf(state.getBidder());
+		return (cents << BIDDER_BITS) | bidder;
+	}
+
+	private User user(int index) {
+		return (index == 0) ? null : users[index];
+	}
+
+	private int indexOf(User user) {
+		Integer index = userIndexes.get(user);
+		if (index != null) return index;
+
+		synchronized (this) {
+			index = userIndexes.get(user);
+			if (index != null) return index;
+
+			if (userCount > BIDDER_MASK) throw new IllegalStateException("Too many users");
+			User[] table = users;
+			if (userCount == table.length) table = Arrays.copyOf(table, table.length * 2);
+			table[userCount] = user;
+			users = table;
+
+			userIndexes.put(user, userCount);
+			return userCount++;
+		}
+	}
+
+	private static class Chunk {
+		final long[] endTimes = new long[CHUNK_SIZE];
+		final AtomicLongArray bids = new AtomicLongArray(CHUNK_SIZE);
+		final int[] owners = new int[CHUNK_SIZE];
+		final AtomicIntegerArray flags = new AtomicIntegerArray(CHUNK_SIZE);
+		final int[] nameStart = new int[CHUNK_SIZE];
+		final int[] nameLength = new int[CHUNK_SIZE];
+		volatile byte[] names = new byte[CHUNK_SIZE * 16];
+		int namesUsed;
+	}
+}
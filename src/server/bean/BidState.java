@@ -0,0 +1,40 @@
+package server.bean;
+
+/**
+ * The highest bid of an auction and who placed it.
+ *
+ * Immutable, an Auction replaces it as a whole by compare-and-set,
+ * so amount and bidder always belong together.
+ */
+public final class BidState {
+	public static final BidState NONE = new BidState(0, null, 0);
+
+	private final double amount;
+	private final User bidder;
+	private final long packed; /** As stored in the AuctionTable, -1 if not read from there */
+
+	public BidState(double amount, User bidder) {
+		this(amount, bidder, -1);
+	}
+
+	BidState(double amount, User bidder, long packed) {
+		this.amount = amount;
+		this.bidder = bidder;
+		this.packed = packed;
+	}
+
+	public double getAmount() {
+		return amount;
+	}
+
+	/**
+	 * @return the highest bidder, null if nobody bid yet
+	 */
+	public User getBidder() {
+		return bidder;
+	}
+
+	long getPacked() {
+		return packed;
+	}
+}
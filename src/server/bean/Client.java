@@ -1,6 +1,8 @@
 package server.bean;
 
 import java.net.InetAddress;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import channels.Channel;
 import channels.CipherChannel;
@@ -11,8 +13,11 @@ import channels.CipherChannel;
 public class Client {
 	private Channel channel;
 	private CipherChannel cipherChannel;
+	private Channel transport;
+	private boolean framed;
 	private InetAddress inetAddress;
 	private int     udpPort;
+	private final Lock sendLock = new ReentrantLock();
 		
 	public Channel getChannel() {
 		return channel;
@@ -32,10 +37,36 @@ public class Client {
 	public void setInetAddress(InetAddress inetAddress) {
 		this.inetAddress = inetAddress;
 	}
+	/**
+	 * @return the channel connected to the socket, below encoding and encryption
+	 */
+	public Channel getTransport() {
+		return transport;
+	}
+	public void setTransport(Channel transport) {
+		this.transport = transport;
+	}
+	/**
+	 * @return true, if length-prefixed frames are used instead of Base64 lines
+	 */
+	public boolean isFramed() {
+		return framed;
+	}
+	public void setFramed(boolean framed) {
+		this.framed = framed;
+	}
 	public CipherChannel getCipherChannel() {
 		return cipherChannel;
 	}
 	public void setCipherChannel(CipherChannel cipherChannel) {
 		this.cipherChannel = cipherChannel;
 	}
+	/**
+	 * Guards sending over the channel, so the cipher stream stays consistent.
+	 * An explicit lock instead of a monitor, so virtual threads don't pin their carrier while writing.
+	 * @return the lock
+	 */
+	public Lock getSendLock() {
+		return sendLock;
+	}
 }
@@ -1,11 +1,13 @@
 package server.service;
 
 import java.util.Collection;
+import java.util.List;
 
 import server.AuctionException;
 import server.bean.Auction;
 import server.bean.Group;
 import server.bean.User;
+import util.DeliveryQueue;
 
 /**
  * Handles auctions
@@ -22,16 +24,43 @@ public interface AuctionManager {
 	Auction createAuction(User owner, String name, int duration);
 	
 	/**
-	 * Ends an auction, notifies the winner and the owner
+	 * Ends an auction, notifies the winner and the owner.
+	 * Billing and analytics are called later, see getBillingQueue()
 	 * @param auction
 	 */
 	void closeAuction(Auction auction);
 	
 	/**
-	 * @return a list of currently active auctions
+	 * @return a list of currently active auctions, ordered by id and unmodifiable
 	 */
 	Collection<Auction> getAuctions();
 	
+	/**
+	 * Scans the active auctions in id order, without a snapshot
+	 * @param fromId first id to return
+	 * @param limit auctions returned at most
+	 * @return active auctions with an id of at least fromId, ordered by id
+	 */
+	List<Auction> getAuctions(int fromId, int limit);
+	
+	/**
+	 * Finds active auctions by the words in their names
+	 * @param query words separated by spaces, all must occur; a word ending in '*' matches prefixes
+	 * @param limit auctions returned at most
+	 * @return matching active auctions, ordered by id
+	 */
+	List<Auction> search(String query, int limit);
+	
+	/**
+	 * @return the current snapshot of the active auctions, taken without locking
+	 */
+	AuctionSnapshot getSnapshot();
+	
+	/**
+	 * @return a number that changes whenever an auction is created, closed or gets a new highest bid
+	 */
+	long getVersion();
+	
 	/**
 	 * @return the group
 	 */
@@ -39,10 +68,16 @@ public interface AuctionManager {
 	
 	/**
 	 * @return the auction with the given id
-	 *         or null if it does not exist
+	 *         or null if it does not exist.
+	 *         Ended auctions are found as well.
 	 */
 	Auction getAuctionById(int id);
 	
+	/**
+	 * @return number of ended auctions, still found by id
+	 */
+	int getEndedCount();
+	
 	/**
 	 * Bids on an auction
 	 * @param bidder
@@ -65,6 +100,31 @@ public interface AuctionManager {
 	 */
 	boolean confirmBid(User confirmer, Auction auction, double amount, String initiator) throws AuctionException;
 	
+	/**
+	 * @return number of auctions waiting for their end time
+	 */
+	int getPendingExpiries();
+	
+	/**
+	 * @return average time auctions were closed after their end time, in milliseconds
+	 */
+	long getAverageExpiryLag();
+	
+	/**
+	 * @return longest time an auction was closed after its end time, in milliseconds
+	 */
+	long getMaxExpiryLag();
+	
+	/**
+	 * @return the queue billing the owners of closed auctions
+	 */
+	DeliveryQueue getBillingQueue();
+	
+	/**
+	 * @return the queue reporting closed auctions to analytics
+	 */
+	DeliveryQueue getAnalyticsQueue();
+	
 	/**
 	 * Prepares for system shutdown
 	 */
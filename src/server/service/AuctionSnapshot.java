@@ -0,0 +1,257 @@
+package server.service;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import server.bean.Auction;
+
+/**
+ * An immutable view of the open auctions, ordered by id.
+ *
+ * The AuctionManager publishes a new snapshot whenever an auction is
+ * created, closed or gets a new highest bid, so readers take the current one
+ * without locking. The version identifies the state: equal versions mean
+ * equal lists and bids, which makes it usable to validate caches and to
+ * tell clients whether anything changed since they last looked.
+ *
+ * The auctions are kept in chunks of up to CHUNK_SIZE that consecutive
+ * snapshots share: adding or removing an auction copies one chunk and the
+ * list of chunks, not all open auctions.
+ *
+ * The auctions themselves are the live objects, so a bid placed after the
+ * snapshot was taken may already show in them.
+ */
+public class AuctionSnapshot {
+	private static final int CHUNK_SIZE = 512;
+
+	public static final AuctionSnapshot EMPTY = new AuctionSnapshot(0, new Auction[0]);
+
+	private final long version;
+	private final Auction[][] chunks; /** Not empty, ordered by id, never modified */
+	private final int[] offsets; /** Index of the first auction of each chunk, the size last */
+	private final List<Auction> list;
+
+	/**
+	 * @param version
+	 * @param auctions open auctions ordered by id
+	 */
+	public AuctionSnapshot(long version, Auction[] auctions) {
+		this(version, split(auctions));
+	}
+
+	private AuctionSnapshot(long version, Auction[][] chunks) {
+		this(version, chunks, offsets(chunks));
+	}
+
+	private AuctionSnapshot(long version, Auction[][] chunks, int[] offsets) {
+		this.version = version;
+		this.chunks = chunks;
+		this.offsets = offsets;
+		this.list = new Auctions();
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the open auctions ordered by id, unmodifiable
+	 */
+	public List<Auction> getAuctions() {
+		return list;
+	}
+
+	public int size() {
+		return offsets[chunks.length];
+	}
+
+	/**
+	 * @return true, if both snapshots hold the same auctions and differ in bids at most
+	 */
+	public boolean hasSameAuctions(AuctionSnapshot other) {
+		return other != null && chunks == other.chunks;
+	}
+
+	/**
+	 * @return a snapshot with the same auctions and the next version
+	 */
+	public AuctionSnapshot next() {
+		return withVersion(version + 1);
+	}
+
+	/**
+	 * @param version
+	 * @return a snapshot with the same auctions and the given version
+	 */
+	public AuctionSnapshot withVersion(long version) {
+		return new AuctionSnapshot(version, chunks, offsets);
+	}
+
+	/**
+	 * @param auction an auction with an id not in this snapshot
+	 * @return a snapshot of the same version with the given auction inserted in order
+	 */
+	public AuctionSnapshot with(Auction auction) {
+		if (chunks.length == 0) return new AuctionSnapshot(version, new Auction[][] { { auction } });
+
+		int c = chunkOf(auction.getId());
+		Auction[] chunk = chunks[c];
+		int i = indexOf(chunk, auction.getId());
+		int position = (i < 0) ? -(i + 1) : i;
+
+		Auction[] grown = new Auction[chunk.length + 1];
+		System.arraycopy(chunk, 0, grown, 0, position);
+		grown[position] = auction;
+		System.arraycopy(chunk, position, grown, position + 1, chunk.length - position);
+
+		if (grown.length <= CHUNK_SIZE) return replace(c, grown);
+
+		// split a full chunk in halves
+		int half = grown.length / 2;
+		Auction[] low = new Auction[half];
+		Auction[] high = new Auction[grown.length - half];
+		System.arraycopy(grown, 0, low, 0, low.length);
+		System.arraycopy(grown, half, high, 0, high.length);
+
+		Auction[][] result = new Auction[chunks.length + 1][];
+		System.arraycopy(chunks, 0, result, 0, c);
+		result[c] = low;
+		result[c + 1] = high;
+		System.arraycopy(chunks, c + 1, result, c + 2, chunks.length - c - 1);
+		return new AuctionSnapshot(version, result);
+	}
+
+	/**
+	 * @param id
+	 * @return a snapshot of the same version without the given auction
+	 */
+	public AuctionSnapshot without(int id) {
+		if (chunks.length == 0) return this;
+
+		int c = chunkOf(id);
+		Auction[] chunk = chunks[c];
+		int i = indexOf(chunk, id);
+		if (i < 0) return this;
+
+		if (chunk.length == 1) {
+			Auction[][] result = new Auction[chunks.length - 1][];
+			System.arraycopy(chunks, 0, result, 0, c);
+			System.arraycopy(chunks, c + 1, result, c, chunks.length - c - 1);
+			return new AuctionSnapshot(version, result);
+		}
+
+		Auction[] shrunk = new Auction[chunk.length - 1];
+		System.arraycopy(chunk, 0, shrunk, 0, i);
+		System.arraycopy(chunk, i + 1, shrunk, i, chunk.length - i - 1);
+		return replace(c, shrunk);
+	}
+
+	private AuctionSnapshot replace(int c, Auction[] chunk) {
+		Auction[][] result = chunks.clone();
+		result[c] = chunk;
+		return new AuctionSnapshot(version, result);
+	}
+
+	/**
+	 * @return index of the last chunk starting at or before the id, 0 if there is none
+	 */
+	private int chunkOf(int id) {
+		int low = 0;
+		int high = chunks.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (chunks[mid][0].getId() <= id) low = mid;
+			else high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Binary search by id
+	 * @return the index of the auction, or -(insertion point) - 1
+	 */
+	private static int indexOf(Auction[] auctions, int id) {
+		int low = 0;
+		int high = auctions.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midId = auctions[mid].getId();
+			if (midId < id) low = mid + 1;
+			else if (midId > id) high = mid - 1;
+			else return mid;
+		}
+		return -(low + 1);
+	}
+
+	private static Auction[][] split(Auction[] auctions) {
+		Auction[][] chunks = new Auction[(auctions.length + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+		for (int c = 0; c < chunks.length; c++) {
+			int from = c * CHUNK_SIZE;
+			chunks[c] = new Auction[Math.min(CHUNK_SIZE, auctions.length - from)];
+			System.arraycopy(auctions, from, chunks[c], 0, chunks[c].length);
+		}
+		return chunks;
+	}
+
+	private static int[] offsets(Auction[][] chunks) {
+		int[] offsets = new int[chunks.length + 1];
+		for (int c = 0; c < chunks.length; c++) {
+			offsets[c + 1] = offsets[c] + chunks[c].length;
+		}
+		return offsets;
+	}
+
+	/**
+	 * The auctions of all chunks as one list
+	 */
+	private class Auctions extends AbstractList<Auction> {
+		@Override
+		public Auction get(int index) {
+			if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index);
+
+			// last chunk starting at or before the index
+			int low = 0;
+			int high = chunks.length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (offsets[mid] <= index) low = mid;
+				else high = mid - 1;
+			}
+			return chunks[low][index - offsets[low]];
+		}
+
+		@Override
+		public int size() {
+			return AuctionSnapshot.this.size();
+		}
+
+		@Override
+		public Iterator<Auction> iterator() {
+			return new Iterator<Auction>() {
+				private int chunk;
+				private int index;
+
+				public boolean hasNext() {
+					return chunk < chunks.length;
+				}
+
+				public Auction next() {
+					if (!hasNext()) throw new NoSuchElementException();
+
+					Auction a = chunks[chunk][index++];
+					if (index == chunks[chunk].length) {
+						chunk++;
+						index = 0;
+					}
+					return a;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
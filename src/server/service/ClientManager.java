@@ -1,9 +1,12 @@
 package server.service;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import server.bean.Client;
+import channels.Channel;
 
 public interface ClientManager {
 	/**
@@ -13,6 +16,13 @@ public interface ClientManager {
 	 */
 	Client newClient(Socket clientSocket);
 	
+	/**
+	 * @param transport the channel connected to the client
+	 * @param address the address of the client
+	 * @return
+	 */
+	Client newClient(Channel transport, InetAddress address);
+	
 	/**
 	 * Disconnects a client
 	 * @param client
@@ -26,6 +36,13 @@ public interface ClientManager {
 	 */
 	void sendMessage(Client client, String message);
 	
+	/**
+	 * Sends the client the remaining bytes of a buffer over TCP
+	 * @param client
+	 * @param message
+	 */
+	void sendMessage(Client client, ByteBuffer message);
+	
 	/**
 	 * Sends the client a message over UDP
 	 * @param client
@@ -42,13 +59,34 @@ public interface ClientManager {
 	String receiveMessage(Client client) throws IOException;
 	
 	/**
-	 * Upgrades this clients channel to a secure channel
+	 * Upgrades this clients channel to a secure channel.
+	 * The AES key is taken from iv64 as well and secret64 is ignored; deployed
+	 * clients rely on this, so it cannot change. Resumed sessions use AES-GCM
+	 * for that reason.
 	 * @param client
-	 * @param secret
-	 * @param iv
+	 * @param secret64
+	 * @param iv64
 	 */
 	void secureConnection(Client client, byte[] secret64, byte[] iv64);
 	
+	/**
+	 * Upgrades this clients channel to AES-GCM, authenticating every message
+	 * @param client
+	 * @param secret64 Base64 encoded AES key
+	 * @param iv64 Base64 encoded IV, at least 12 bytes
+	 * @param server true on the server side of the connection
+	 * @return true, if the channel was upgraded
+	 */
+	boolean secureConnectionAead(Client client, byte[] secret64, byte[] iv64, boolean server);
+	
+	/**
+	 * Switches this clients channel to length-prefixed binary frames
+	 * without Base64 encoding. Has no effect if already switched.
+	 * @param client
+	 * @return true, if the transport supports frames
+	 */
+	boolean enableFraming(Client client);
+	
 	/**
 	 * Downgrades this clients channel to an insecure channel
 	 * @param client
@@ -59,4 +97,9 @@ public interface ClientManager {
 	 * Disconnects every client
 	 */
 	void disconnectAll();
+	
+	/**
+	 * @return number of connected clients
+	 */
+	int getClientCount();
 }
@@ -20,16 +20,24 @@ public class AnalyticsServerWrapper {
 	}
 	
 	public void processEvent(Event event) {
-		if (null == server) {
-			return;
-		}
-		
 		try {
-			server.processEvent(event);
+			send(event);
 		} catch (RemoteException e) {
 			logger.warning(String.format("Failed to call analytics server: %s", e.toString()));
 		} catch (AnalyticsException e) {
 			logger.warning(String.format("Failed to call analytics server: %s", e.toString()));
 		}
 	}
+	
+	/**
+	 * Sends an event, leaving failures to the caller
+	 * @param event
+	 */
+	public void send(Event event) throws RemoteException, AnalyticsException {
+		if (null == server) {
+			return;
+		}
+		
+		server.processEvent(event);
+	}
 }
@@ -0,0 +1,287 @@
+package server.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of the words in the names of open auctions.
+ *
+ * Every word maps to the ascending ids of the auctions whose name contains
+ * it. A search intersects the lists of its terms, starting with the shortest;
+ * a term ending in '*' matches every word starting with it. Words are the
+ * runs of letters and digits, compared in lower case.
+ *
+ * Closing an auction only marks its id; a list drops the ids of closed
+ * auctions once they make up half of it, so closing costs constant time on
+ * average instead of shifting long lists for common words.
+ */
+public class AuctionIndex {
+	public static final char PREFIX = '*';
+
+	private final TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+	private final BitSet closed = new BitSet();
+
+	private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private Lock readLock = readWriteLock.readLock();
+	private Lock writeLock = readWriteLock.writeLock();
+
+	/**
+	 * @param id
+	 * @param name name of the new auction
+	 */
+	public void add(int id, String name) {
+		Set<String> terms = words(name);
+
+		writeLock.lock();
+		try {
+			for (String word : terms) {
+				Postings p = words.get(word);
+				if (p == null) {
+					p = new Postings();
+					words.put(word, p);
+				}
+				p.add(id);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @param id
+	 * @param name name of the closed auction
+	 */
+	public void remove(int id, String name) {
+		Set<String> terms = words(name);
+
+		writeLock.lock();
+		try {
+			closed.set(id);
+			for (String word : terms) {
+				Postings p = words.get(word);
+				if (p == null) continue;
+
+				p.dead++;
+				if (p.dead * 2 >= p.size) {
+					p.compact(closed);
+					if (p.size == 0) words.remove(word);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @param query words to look for, separated by spaces, a '*' at the end of a word matches prefixes
+	 * @param limit ids returned at most
+	 * @return ids of open auctions whose name contains all words, ascending
+	 */
+	public int[] search(String query, int limit) {
+		List<String> terms = new ArrayList<String>();
+		for (String token : query.split(" ")) {
+			boolean prefix = token.length() > 1 && token.charAt(token.length() - 1) == PREFIX;
+			for (String word : words(prefix ? token.substring(0, token.length() - 1) : token)) {
+				terms.add(word);
+			}
+			// only the last word of a token like "re-run*" is a prefix
+			if (prefix && !terms.isEmpty()) terms.set(terms.size() - 1, terms.get(terms.size() - 1) + PREFIX);
+		}
+		if (terms.isEmpty() || limit <= 0) return new int[0];
+
+		readLock.lock();
+		try {
+			Term[] matching = new Term[terms.size()];
+			for (int i = 0; i < matching.length; i++) {
+				String term = terms.get(i);
+				Collection<Postings> postings;
+				if (term.charAt(term.length() - 1) == PREFIX) {
+					String prefix = term.substring(0, term.length() - 1);
+					postings = words.subMap(prefix, prefix + Character.MAX_VALUE).values();
+				} else {
+					Postings p = words.get(term);
+					postings = (p == null) ? Collections.<Postings>emptyList() : Collections.singletonList(p);
+				}
+				if (postings.isEmpty()) return new int[0];
+				matching[i] = new Term(postings);
+			}
+
+			return intersect(matching, limit);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of distinct words indexed
+	 */
+	public int size() {
+		readLock.lock();
+		try {
+			return words.size();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Walks the ids of the rarest term and looks each one up in the others
+	 */
+	private int[] intersect(Term[] terms, int limit) {
+		Term rarest = terms[0];
+		for (Term t : terms) {
+			if (t.total < rarest.total) rarest = t;
+		}
+
+		int[] result = new int[Math.min(limit, rarest.total)];
+		int count = 0;
+
+		candidates:
+		for (int id = rarest.next(); id >= 0 && count < result.length; id = rarest.next()) {
+			if (closed.get(id)) continue;
+
+			for (Term t : terms) {
+				if (t != rarest && !t.contains(id)) continue candidates;
+			}
+			result[count++] = id;
+		}
+		return (count == result.length) ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * The lists of the words matching one search term, read in ascending order of ids.
+	 * Ids are looked up in ascending order too, so each list is only searched
+	 * forward from where the last lookup ended.
+	 */
+	private static class Term {
+		final int[][] ids;
+		final int[] sizes;
+		final int[] positions;
+		final int total;
+
+		Term(Collection<Postings> postings) {
+			ids = new int[postings.size()][];
+			sizes = new int[ids.length];
+			positions = new int[ids.length];
+
+			int i = 0, n = 0;
+			for (Postings p : postings) {
+				ids[i] = p.ids;
+				sizes[i] = p.size;
+				n += p.size;
+				i++;
+			}
+			total = n;
+		}
+
+		/**
+		 * @return the next id in any list, -1 at the end
+		 */
+		int next() {
+			int min = -1;
+			for (int i = 0; i < ids.length; i++) {
+				if (positions[i] < sizes[i] && (min < 0 || ids[i][positions[i]] < min)) min = ids[i][positions[i]];
+			}
+			// the same auction can contain several matching words
+			for (int i = 0; i < ids.length; i++) {
+				if (positions[i] < sizes[i] && ids[i][positions[i]] == min) positions[i]++;
+			}
+			return min;
+		}
+
+		/**
+		 * @param id at least as large as the last id looked up
+		 * @return true, if any list contains the id
+		 */
+		boolean contains(int id) {
+			boolean found = false;
+			for (int i = 0; i < ids.length; i++) {
+				int pos = gallop(ids[i], positions[i], sizes[i], id);
+				positions[i] = pos;
+				if (pos < sizes[i] && ids[i][pos] == id) found = true;
+			}
+			return found;
+		}
+
+		/**
+		 * Exponential search, cheap when the id is close to from
+		 * @return index of the first element at least the key
+		 */
+		private static int gallop(int[] a, int from, int to, int key) {
+			int step = 1;
+			int low = from;
+			int high = from;
+			while (high < to && a[high] < key) {
+				low = high + 1;
+				high = from + step;
+				step <<= 1;
+			}
+			high = Math.min(high, to);
+
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (a[mid] < key) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * @param text
+	 * @return the distinct words of the text in lower case
+	 */
+	static Set<String> words(String text) {
+		Set<String> result = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				result.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Ascending auction ids containing a word, including closed ones not dropped yet
+	 */
+	private static class Postings {
+		int[] ids = new int[4];
+		int size;
+		int dead;
+
+		void add(int id) {
+			if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+
+			// ids are handed out in order, but auctions are not always indexed in order
+			int pos = size;
+			while (pos > 0 && ids[pos - 1] > id) pos--;
+			System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+			ids[pos] = id;
+			size++;
+		}
+
+		void compact(BitSet closed) {
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (!closed.get(ids[i])) ids[n++] = ids[i];
+			}
+			size = n;
+			dead = 0;
+			if (ids.length > 16 && size < ids.length / 4) ids = Arrays.copyOf(ids, Math.max(size * 2, 4));
+		}
+	}
+}
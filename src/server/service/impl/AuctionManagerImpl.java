@@ -2,57 +2,112 @@ package server.service.impl;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import server.AuctionException;
 import server.BidExecuter;
 import server.bean.Auction;
+import server.bean.AuctionTable;
+import server.bean.BidState;
 import server.bean.Group;
 import server.bean.GroupBid;
 import server.bean.User;
 import server.service.AuctionManager;
+import server.service.AuctionSnapshot;
 import server.service.UserManager;
 import analytics.event.AuctionEvent;
 import analytics.event.BidEvent;
 import analytics.event.Event;
 import billing.BillingServerSecure;
 import client.UDPProtocol;
+import util.DeliveryQueue;
+import util.TimingWheel;
 
 public class AuctionManagerImpl implements AuctionManager {	
+	public static final int DEFAULT_TICK_MILLIS   = 100;
+	public static final int DEFAULT_CLOSE_WORKERS = 4;
+	public static final int DEFAULT_DELIVERY_THREADS = 2;
+	public static final int DEFAULT_DELIVERY_QUEUE   = 10000;
+	public static final int DEFAULT_RETRIES          = 5;
+	public static final int DEFAULT_RETRY_MILLIS     = 500;
+	private static final int WHEEL_SIZE   = 256;
+	private static final int WHEEL_LEVELS = 4;
+	
 	private Logger logger = Logger.getLogger(AuctionManagerImpl.class.getSimpleName());
 	private AtomicInteger auctionID; /** Next free auction id */
-	private TreeMap<Integer, Auction> auctions;
+	private AtomicReference<AuctionSnapshot> snapshot; /** Open auctions and the version */
+	private AuctionRegistry auctions; /** Open auctions by id */
+	private AuctionTable table; /** All auctions ever created, closed ones stay for lookups by id */
+	private AuctionIndex index; /** Words in the names of open auctions */
 	private Group theGroup;
 	
 	private UserManager usManager;
-	private Timer timer;
+	private TimingWheel expiries;
+	private ExecutorService closeWorkers;
+	private DeliveryQueue billingQueue;
+	private DeliveryQueue analyticsQueue;
+	
+	private AtomicLong closed = new AtomicLong();
+	private AtomicLong expiryLag = new AtomicLong(); /** Sum of close delays in ms */
+	private AtomicLong maxExpiryLag = new AtomicLong();
 
 	private BillingServerSecure billingServer;
 	private AnalyticsServerWrapper analyticsServer;
 	
-	private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-	private Lock readLock = readWriteLock.readLock();
-	private Lock writeLock = readWriteLock.writeLock();
+	private Lock structureLock = new ReentrantLock(); /** Held while adding or removing open auctions */
 
 	public AuctionManagerImpl(UserManager usManager, BillingServerSecure billingServer, AnalyticsServerWrapper analyticsServer, Group group) {
+		this(usManager, billingServer, analyticsServer, group, DEFAULT_TICK_MILLIS, DEFAULT_CLOSE_WORKERS,
+			 DEFAULT_DELIVERY_THREADS, DEFAULT_DELIVERY_QUEUE, DEFAULT_RETRIES, DEFAULT_RETRY_MILLIS);
+	}
+	
+	/**
+	 * @param tickMillis resolution of auction end times
+	 * @param workers number of threads closing ended auctions
+	 * @param deliveryThreads threads calling billing, and as many calling analytics, for closed auctions
+	 * @param deliveryQueue calls to billing or analytics waiting at most
+	 * @param retries attempts after a failed call
+	 * @param retryMillis delay before the first retry, doubled for every further one
+	 */
+	public AuctionManagerImpl(UserManager usManager, BillingServerSecure billingServer, AnalyticsServerWrapper analyticsServer, Group group,
+							  int tickMillis, int workers, int deliveryThreads, int deliveryQueue, int retries, int retryMillis) {
 		this.usManager = usManager;
 		this.billingServer = billingServer;
 		this.analyticsServer = analyticsServer;
 		
 		auctionID = new AtomicInteger();
-		auctions = new TreeMap<Integer, Auction>();
+		snapshot = new AtomicReference<AuctionSnapshot>(AuctionSnapshot.EMPTY);
+		auctions = new AuctionRegistry();
+		table = new AuctionTable();
+		index = new AuctionIndex();
 		theGroup = group;
 		
-		timer = new Timer();
+		// ended auctions must not wait for each other
+		final AtomicInteger count = new AtomicInteger();
+		closeWorkers = Executors.newFixedThreadPool(Math.max(workers, 1), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "auction-close-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		expiries = new TimingWheel(Math.max(tickMillis, 1), WHEEL_SIZE, WHEEL_LEVELS, closeWorkers);
+		expiries.start();
+		
+		// remote calls for closed auctions, a slow server only holds up its own queue
+		billingQueue = new DeliveryQueue("billing", deliveryThreads, deliveryQueue, retries, retryMillis, expiries);
+		analyticsQueue = new DeliveryQueue("analytics", deliveryThreads, deliveryQueue, retries, retryMillis, expiries);
 	}
 
 	@Override
@@ -63,31 +118,26 @@ public class AuctionManagerImpl implements AuctionManager {
 		
 		int id = auctionID.incrementAndGet();
 		
-		Auction auction = new Auction();
-		auction.setId(id);
-		auction.setOwner(owner);
-		auction.setName(name);
-		auction.setHighestBid(0);
-		
-		Calendar calendar = Calendar.getInstance();
-		calendar.add(Calendar.SECOND, duration);
+		long endMillis = System.currentTimeMillis() + duration * 1000L;
 		
-		auction.setEndTime(calendar);
+		Auction auction;
+		structureLock.lock();
+		try {
+			auction = table.add(id, owner, name, endMillis);
+			auctions.add(auction);
+			publish(snapshot.get().with(auction));
+		} finally {
+			structureLock.unlock();
+		}
+		index.add(id, name);
 		
-		AuctionEndTask task = new AuctionEndTask(auction);
-		timer.schedule(task, calendar.getTime());
+		// scheduled once open, an auction without duration is closed right away
+		expiries.schedule(new AuctionEndTask(auction), endMillis);
 		
 		// notify analytics
 		Event event = new AuctionEvent("AUCTION_STARTED", System.currentTimeMillis(), auction.getId());
 		analyticsServer.processEvent(event);
 		
-		writeLock.lock();
-		try {
-			auctions.put(id, auction);
-		} finally {
-			writeLock.unlock();
-		}
-		
 		return auction;
 	}
 
@@ -95,57 +145,150 @@ public class AuctionManagerImpl implements AuctionManager {
 	public void closeAuction(Auction auction) {
 		if (auction == null) return;
 		
-		User winner;
-		String msg = null;
-		double highestBid;
+		if (!auction.markClosed()) return;
+		index.remove(auction.getId(), auction.getName());
 		
-		synchronized (auction) {
-			winner = auction.getHighestBidder();
-			highestBid = auction.getHighestBid();
+		structureLock.lock();
+		try {
+			auctions.remove(auction.getId());
+			publish(snapshot.get().without(auction.getId()));
+		} finally {
+			structureLock.unlock();
 		}
 		
+		// later bids, like late signed bids, still reach the row but nobody is notified
+		BidState result = auction.getBidState();
+		User winner = result.getBidder();
+		double highestBid = result.getAmount();
+		
 		if (auction.hasGroupBid()) {
 			theGroup.giveBudget();
 		}
 		
-		// notify winner
+		// notify winner and owner
 		if (winner != null) {
-			msg = String.format("%s %s %.2f %s", UDPProtocol.AUCTION_END, winner.getName(), highestBid, auction.getName());
+			String msg = String.format("%s %s %.2f %s", UDPProtocol.AUCTION_END, winner.getName(), highestBid, auction.getName());
 			usManager.postMessage(winner, msg);
-			
-			Event event = new BidEvent("BID_WON", System.currentTimeMillis(), winner.getName(), auction.getId(), highestBid);
-			analyticsServer.processEvent(event);
+			if (winner != auction.getOwner())
+				usManager.postMessage(auction.getOwner(), msg);
 		}
-
-		// notify analytics
-		Event event = new AuctionEvent("AUCTION_ENDED", System.currentTimeMillis(), auction.getId());
-		analyticsServer.processEvent(event);
 		
-		// notify owner
-		if (winner != null && winner != auction.getOwner())
-			usManager.postMessage(auction.getOwner(), msg);
+		// the remote servers are called by their own threads, the result is recorded in the auction
+		List<Event> events = new ArrayList<Event>(2);
+		long now = System.currentTimeMillis();
+		if (winner != null) {
+			events.add(new BidEvent("BID_WON", now, winner.getName(), auction.getId(), highestBid));
+		}
+		events.add(new AuctionEvent("AUCTION_ENDED", now, auction.getId()));
+		analyticsQueue.submit(new Report(auction, events));
 		
-		// bill owner
-		try {
-			if (billingServer != null)
-				billingServer.billAuction(auction.getOwner().getName(), auction.getId(), highestBid);
-		} catch (RemoteException e) {
-			logger.log(Level.WARNING, "Could not bill auction: " + e.getMessage());
+		if (billingServer != null) {
+			billingQueue.submit(new Bill(auction, highestBid));
+		}
+	}
+	
+	/**
+	 * Bills the owner of a closed auction
+	 */
+	private class Bill extends DeliveryQueue.Delivery {
+		private final Auction auction;
+		private final double price;
+		
+		Bill(Auction auction, double price) {
+			this.auction = auction;
+			this.price = price;
+		}
+		
+		@Override
+		protected void deliver() throws RemoteException {
+			billingServer.billAuction(auction.getOwner().getName(), auction.getId(), price);
+		}
+		
+		@Override
+		protected void done(boolean success) {
+			auction.recordBilling(success);
+		}
+		
+		@Override
+		public String toString() {
+			return "billing of auction " + auction.getId();
+		}
+	}
+	
+	/**
+	 * Reports the end of an auction to analytics, in order; a retry resends only the events not sent yet
+	 */
+	private class Report extends DeliveryQueue.Delivery {
+		private final Auction auction;
+		private final List<Event> events;
+		private int sent;
+		
+		Report(Auction auction, List<Event> events) {
+			this.auction = auction;
+			this.events = events;
+		}
+		
+		@Override
+		protected void deliver() throws Exception {
+			while (sent < events.size()) {
+				analyticsServer.send(events.get(sent));
+				sent++;
+			}
+		}
+		
+		@Override
+		protected void done(boolean success) {
+			auction.recordReport(success);
+		}
+		
+		@Override
+		public String toString() {
+			return "report of auction " + auction.getId();
 		}
 	}
 
+	/**
+	 * Publishes a snapshot with the next version
+	 * @param open a snapshot of the open auctions, its version is replaced; null if only a bid changed
+	 */
+	private void publish(AuctionSnapshot open) {
+		while (true) {
+			AuctionSnapshot current = snapshot.get();
+			AuctionSnapshot next = (open == null) ? current.next() : open.withVersion(current.getVersion() + 1);
+			if (snapshot.compareAndSet(current, next)) return;
+		}
+	}
+	
 	@Override
 	public Collection<Auction> getAuctions() {
-		readLock.lock();
-		try {
-			ArrayList<Auction> list = new ArrayList<Auction>();
-			for (Auction a : auctions.values()) {
-				if (!a.hasEnded()) list.add(a);
-			}
-			return list;
-		} finally {
-			readLock.unlock();
+		return snapshot.get().getAuctions();
+	}
+	
+	@Override
+	public List<Auction> getAuctions(int fromId, int limit) {
+		return auctions.range(fromId, limit);
+	}
+	
+	@Override
+	public List<Auction> search(String query, int limit) {
+		int[] ids = index.search(query, limit);
+		
+		List<Auction> result = new ArrayList<Auction>(ids.length);
+		for (int id : ids) {
+			Auction auction = auctions.get(id);
+			if (auction != null) result.add(auction);
 		}
+		return result;
+	}
+	
+	@Override
+	public AuctionSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	@Override
+	public long getVersion() {
+		return snapshot.get().getVersion();
 	}
 	
 	@Override
@@ -159,20 +302,26 @@ public class AuctionManagerImpl implements AuctionManager {
 		if (auction == null) throw new IllegalArgumentException("Auction can't be null!");
 		if (amount <= 0) throw new IllegalArgumentException("Must bid at least 0.01 units of currency!");
 		
-		boolean overbid = false;
+		if (Math.round(amount * 100) > AuctionTable.MAX_CENTS) return false;
 		
-		synchronized (auction) {
-			if (amount < auction.getHighestBid()) {
+		BidState update = new BidState(amount, bidder);
+		BidState previous;
+		do {
+			previous = auction.getBidState();
+			if (amount < previous.getAmount()) {
 				return false;
 			}
-			
-			if (auction.getHighestBidder() != null && auction.getHighestBidder() != bidder) {
-				String msg = UDPProtocol.OVERBID + " " + auction.getName();
-				usManager.postMessage(auction.getHighestBidder(), msg);
-				overbid = true;
-			}
-			auction.setHighestBid(amount);
-			auction.setHighestBidder(bidder);
+		} while (!auction.compareAndSetBidState(previous, update));
+		
+		publish(null);
+		
+		// only the bid that won the CAS notifies, without holding anything
+		User overbidUser = previous.getBidder();
+		if (overbidUser == bidder) overbidUser = null;
+		boolean overbid = (overbidUser != null);
+		if (overbid) {
+			String msg = UDPProtocol.OVERBID + " " + auction.getName();
+			usManager.postMessage(overbidUser, msg);
 		}
 
 		// notify analytics
@@ -188,8 +337,7 @@ public class AuctionManagerImpl implements AuctionManager {
 	 */
 	public boolean groupBid(int auctionId, User bidder, double amount) {
 		Auction auction = getAuctionById(auctionId);
-		if (!auction.hasGroupBid()) {
-			auction.setGroupBid(true);
+		if (auction.setGroupBid()) {
 			theGroup.takeBudget();
 		}
 		
@@ -267,16 +415,22 @@ public class AuctionManagerImpl implements AuctionManager {
 		return false;
 	}
 
-	private class AuctionEndTask extends TimerTask {
+	private class AuctionEndTask implements Runnable {
 		private Auction auction;
 		
 		public AuctionEndTask(Auction auction) {
-			super();
 			this.auction = auction;
 		}
 		
 		@Override
 		public void run() {
+			long lag = Math.max(0, System.currentTimeMillis() - auction.getEndMillis());
+			expiryLag.addAndGet(lag);
+			closed.incrementAndGet();
+			
+			long max;
+			while (lag > (max = maxExpiryLag.get()) && !maxExpiryLag.compareAndSet(max, lag)) {}
+			
 			closeAuction(auction);
 		}
 		
@@ -284,16 +438,47 @@ public class AuctionManagerImpl implements AuctionManager {
 
 	@Override
 	public void shutdown() {
-		timer.cancel();
+		expiries.stop();
+		closeWorkers.shutdown();
+		billingQueue.shutdown();
+		analyticsQueue.shutdown();
+	}
+	
+	@Override
+	public int getPendingExpiries() {
+		// retries are scheduled on the same wheel
+		return expiries.size() - billingQueue.getRetrying() - analyticsQueue.getRetrying();
+	}
+	
+	@Override
+	public DeliveryQueue getBillingQueue() {
+		return billingQueue;
+	}
+	
+	@Override
+	public DeliveryQueue getAnalyticsQueue() {
+		return analyticsQueue;
+	}
+	
+	@Override
+	public long getAverageExpiryLag() {
+		long n = closed.get();
+		return (n == 0) ? 0 : expiryLag.get() / n;
+	}
+	
+	@Override
+	public long getMaxExpiryLag() {
+		return maxExpiryLag.get();
 	}
 
 	@Override
 	public Auction getAuctionById(int id) {
-		readLock.lock();
-		try {
-			return auctions.get(id);
-		} finally {
-			readLock.unlock();
-		}
+		Auction auction = auctions.get(id);
+		return (auction != null) ? auction : table.get(id);
+	}
+	
+	@Override
+	public int getEndedCount() {
+		return table.size() - auctions.size();
 	}
 }
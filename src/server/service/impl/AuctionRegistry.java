@@ -0,0 +1,131 @@
+package server.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import server.bean.Auction;
+
+/**
+ * Open auctions by id, without a lock for readers.
+ *
+ * Auction ids are handed out consecutively, so the registry is an array
+ * indexed by id, split into chunks of CHUNK_SIZE slots that are allocated on
+ * first use and dropped once all their auctions have been removed. Lookups
+ * are a few array reads and never wait; scans visit the ids in order.
+ *
+ * Writers are serialised among themselves, readers see each slot as soon as
+ * it has been written.
+ */
+public class AuctionRegistry {
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private volatile AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<Chunk>(16);
+	private volatile int size;
+	private int highestId; /** Highest id ever added */
+
+	/**
+	 * @param id
+	 * @return the open auction with the id, null if there is none
+	 */
+	public Auction get(int id) {
+		if (id < 0) return null;
+
+		AtomicReferenceArray<Chunk> directory = chunks;
+		int index = id >>> CHUNK_BITS;
+		if (index >= directory.length()) return null;
+
+		Chunk chunk = directory.get(index);
+		return (chunk == null) ? null : chunk.slots.get(id & CHUNK_MASK);
+	}
+
+	/**
+	 * @param auction an auction whose id is not registered yet
+	 */
+	public synchronized void add(Auction auction) {
+		int id = auction.getId();
+		int index = id >>> CHUNK_BITS;
+
+		AtomicReferenceArray<Chunk> directory = chunks;
+		if (index >= directory.length()) {
+			AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<Chunk>(Math.max(index + 1, directory.length() * 2));
+			for (int i = 0; i < directory.length(); i++) grown.set(i, directory.get(i));
+			chunks = directory = grown;
+		}
+
+		Chunk chunk = directory.get(index);
+		if (chunk == null) {
+			chunk = new Chunk();
+			directory.set(index, chunk);
+		}
+
+		if (chunk.slots.get(id & CHUNK_MASK) == null) {
+			chunk.live++;
+			size++;
+		}
+		chunk.slots.set(id & CHUNK_MASK, auction);
+		if (id > highestId) highestId = id;
+	}
+
+	/**
+	 * @param id
+	 * @return true, if the auction was registered
+	 */
+	public synchronized boolean remove(int id) {
+		if (id < 0) return false;
+
+		AtomicReferenceArray<Chunk> directory = chunks;
+		int index = id >>> CHUNK_BITS;
+		if (index >= directory.length()) return false;
+
+		Chunk chunk = directory.get(index);
+		if (chunk == null || chunk.slots.getAndSet(id & CHUNK_MASK, null) == null) return false;
+
+		chunk.live--;
+		size--;
+
+		// no more ids will be added to a chunk that has been handed out completely
+		int lastId = (index << CHUNK_BITS) | CHUNK_MASK;
+		if (chunk.live == 0 && lastId <= highestId) directory.set(index, null);
+		return true;
+	}
+
+	/**
+	 * @param fromId first id to look at
+	 * @param limit auctions returned at most
+	 * @return open auctions with an id of at least fromId, in ascending order
+	 */
+	public List<Auction> range(int fromId, int limit) {
+		List<Auction> result = new ArrayList<Auction>(Math.min(Math.max(limit, 0), 256));
+		AtomicReferenceArray<Chunk> directory = chunks;
+
+		int id = Math.max(fromId, 0);
+		while (result.size() < limit && (id >>> CHUNK_BITS) < directory.length()) {
+			Chunk chunk = directory.get(id >>> CHUNK_BITS);
+			if (chunk == null) {
+				// skip the whole chunk
+				id = ((id >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+				continue;
+			}
+
+			Auction auction = chunk.slots.get(id & CHUNK_MASK);
+			if (auction != null) result.add(auction);
+			id++;
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of registered auctions
+	 */
+	public int size() {
+		return size;
+	}
+
+	private static class Chunk {
+		final AtomicReferenceArray<Auction> slots = new AtomicReferenceArray<Auction>(CHUNK_SIZE);
+		int live; /** Registered auctions, guarded by the registry */
+	}
+}
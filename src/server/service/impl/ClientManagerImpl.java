@@ -3,12 +3,19 @@ package server.service.impl;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +32,9 @@ import server.service.ClientManager;
 import channels.Base64Channel;
 import channels.Channel;
 import channels.CipherChannel;
+import channels.FramableChannel;
+import channels.OutboundQueue;
+import channels.QueuedChannel;
 import channels.TCPChannel;
 
 public class ClientManagerImpl implements ClientManager {
@@ -32,40 +42,58 @@ public class ClientManagerImpl implements ClientManager {
 	
 	private static final String CIPHER = "AES/CTR/NoPadding";
 	private Logger logger = Logger.getLogger(this.getClass().getName());
-	private ArrayList<Client> clients;
+	private Set<Client> clients;
+	private Executor writer;
+	private int highWaterMark;
 	
 	public ClientManagerImpl() {
-		clients = new ArrayList<Client>();
+		this(null, OutboundQueue.DEFAULT_HIGH_WATER_MARK);
+	}
+	
+	/**
+	 * @param writer writes queued messages of socket clients, null to write right away
+	 * @param highWaterMark bytes queued for a client before it is disconnected
+	 */
+	public ClientManagerImpl(Executor writer, int highWaterMark) {
+		clients = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+		this.writer = writer;
+		this.highWaterMark = highWaterMark;
 	}
 	
 	@Override
 	public Client newClient(Socket clientSocket) {
-		Client client = new Client();
-		client.setInetAddress(clientSocket.getInetAddress());
-		
+		Channel channel;
 		try {
-			Channel channel = new TCPChannel(clientSocket);
-			channel = new Base64Channel(channel);
-			CipherChannel cipherChannel = new CipherChannel(channel);
-			
-			client.setChannel(cipherChannel);
-			client.setCipherChannel(cipherChannel);
+			channel = new TCPChannel(clientSocket, writer);
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "Channel could not be created! " + e.getMessage());
 			return null;
 		}
 		
-		synchronized (clients) {
-			clients.add(client);
-		}
+		return newClient(channel, clientSocket.getInetAddress());
+	}
+	
+	@Override
+	public Client newClient(Channel transport, InetAddress address) {
+		Client client = new Client();
+		client.setInetAddress(address);
+		
+		if (transport instanceof QueuedChannel) ((QueuedChannel) transport).setHighWaterMark(highWaterMark);
+		
+		Channel channel = new Base64Channel(transport);
+		CipherChannel cipherChannel = new CipherChannel(channel);
+		
+		client.setChannel(cipherChannel);
+		client.setCipherChannel(cipherChannel);
+		client.setTransport(transport);
+		
+		clients.add(client);
 		return client;
 	}
 
 	@Override
 	public void disconnect(Client client) {
-		synchronized (clients) {
-			clients.remove(client);
-		}
+		clients.remove(client);
 		
 		try {
 			client.getChannel().close();
@@ -78,8 +106,25 @@ public class ClientManagerImpl implements ClientManager {
 	public void sendMessage(Client client, String message) {
 		if (client == null) throw new IllegalArgumentException("Cannot send a message to null!");
 		
-		synchronized (client) {
+		Lock lock = client.getSendLock();
+		lock.lock();
+		try {
 			client.getChannel().send(message.getBytes());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void sendMessage(Client client, ByteBuffer message) {
+		if (client == null) throw new IllegalArgumentException("Cannot send a message to null!");
+		
+		Lock lock = client.getSendLock();
+		lock.lock();
+		try {
+			client.getCipherChannel().send(message);
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -141,6 +186,40 @@ public class ClientManagerImpl implements ClientManager {
 		}
 	}
 	
+	@Override
+	public boolean secureConnectionAead(Client client, byte[] secret64, byte[] iv64, boolean server) {
+		SecretKey secretKey = new SecretKeySpec(Base64.decode(secret64), "AES");
+		
+		try {
+			client.getCipherChannel().setAead(secretKey, Base64.decode(iv64), server);
+			return true;
+		} catch (GeneralSecurityException e) {
+			logger.log(Level.SEVERE, "Could not set up AES-GCM: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	@Override
+	public boolean enableFraming(Client client) {
+		if (client.isFramed()) return true;
+		if (!(client.getTransport() instanceof FramableChannel)) return false;
+		
+		Lock lock = client.getSendLock();
+		lock.lock();
+		try {
+			Channel framed = ((FramableChannel) client.getTransport()).framed();
+			client.getCipherChannel().setChannel(framed);
+			client.setFramed(true);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not switch to framed channel: " + e.getMessage());
+			return false;
+		} finally {
+			lock.unlock();
+		}
+		
+		return true;
+	}
+	
 	@Override
 	public void unsecureConnection(Client client) {
 		CipherChannel channel = client.getCipherChannel();
@@ -149,11 +228,14 @@ public class ClientManagerImpl implements ClientManager {
 
 	@Override
 	public void disconnectAll() {
-		synchronized (clients) {
-			while(clients.size() > 0) {
-				disconnect(clients.get(0));
-			}
+		for (Client c : clients) {
+			disconnect(c);
 		}
 	}
+	
+	@Override
+	public int getClientCount() {
+		return clients.size();
+	}
 
 }
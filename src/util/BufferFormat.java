@@ -0,0 +1,66 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Writes message parts into ByteBuffers without creating intermediate Strings.
+ */
+public final class BufferFormat {
+	private static final char DECIMAL_SEPARATOR = new DecimalFormatSymbols().getDecimalSeparator();
+
+	private BufferFormat() {}
+
+	/**
+	 * @param buf
+	 * @param prefix an ASCII encoded prefix
+	 * @return true, if the remaining bytes of buf start with prefix
+	 */
+	public static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+		if (buf.remaining() < prefix.length) return false;
+
+		int pos = buf.position();
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf.get(pos + i) != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes an ASCII string
+	 */
+	public static ByteBuffer putAscii(ByteBuffer buf, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			buf.put((byte) s.charAt(i));
+		}
+		return buf;
+	}
+
+	/**
+	 * Writes an amount with two decimals, like String.format("%.2f", amount)
+	 */
+	public static ByteBuffer putAmount(ByteBuffer buf, double amount) {
+		long cents = Math.round(amount * 100);
+		if (cents < 0) {
+			buf.put((byte) '-');
+			cents = -cents;
+		}
+
+		putLong(buf, cents / 100);
+		buf.put((byte) DECIMAL_SEPARATOR);
+
+		long fraction = cents % 100;
+		buf.put((byte) ('0' + fraction / 10));
+		buf.put((byte) ('0' + fraction % 10));
+		return buf;
+	}
+
+	/**
+	 * Writes a non-negative number in decimal
+	 */
+	public static ByteBuffer putLong(ByteBuffer buf, long value) {
+		if (value >= 10) putLong(buf, value / 10);
+		buf.put((byte) ('0' + value % 10));
+		return buf;
+	}
+}
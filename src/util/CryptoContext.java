@@ -0,0 +1,117 @@
+package util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per-thread instances of the crypto primitives used by SecurityUtils.
+ *
+ * Looking up a Cipher, Mac or Signature searches the provider list every
+ * time, so each thread keeps the instances it created and initialises them
+ * again with the key of the next operation. Instances must not be used
+ * beyond the call that obtained them, they are shared with later calls on
+ * the same thread.
+ *
+ * Random bytes come from one shared SecureRandom, fetched in blocks.
+ */
+public final class CryptoContext {
+	public static final String RSA_CIPHER     = "RSA/NONE/OAEPWithSHA256AndMGF1Padding";
+	public static final String SIGNATURE_ALGO = "SHA512withRSA";
+	public static final String HMAC_ALGORITHM = "HmacSHA256";
+	public static final String SECRET_KEY_ALGORITHM = "AES";
+
+	private static final int RANDOM_BLOCK = 4096; /** Random bytes fetched at once */
+
+	private static final ThreadLocal<CryptoContext> contexts = new ThreadLocal<CryptoContext>() {
+		@Override
+		protected CryptoContext initialValue() {
+			return new CryptoContext();
+		}
+	};
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final byte[] randomBlock = new byte[RANDOM_BLOCK];
+	private static int randomPosition = RANDOM_BLOCK;
+
+	private Cipher rsa;
+	private Mac hmac;
+	private Signature signature;
+	private KeyGenerator secretKeys;
+
+	private CryptoContext() {}
+
+	/**
+	 * @return the context of the calling thread
+	 */
+	public static CryptoContext get() {
+		return contexts.get();
+	}
+
+	public Cipher rsa() throws NoSuchAlgorithmException, NoSuchPaddingException {
+		if (rsa == null) rsa = Cipher.getInstance(RSA_CIPHER);
+		return rsa;
+	}
+
+	public Mac hmac() throws NoSuchAlgorithmException {
+		if (hmac == null) hmac = Mac.getInstance(HMAC_ALGORITHM);
+		return hmac;
+	}
+
+	public Signature signature() throws NoSuchAlgorithmException {
+		if (signature == null) signature = Signature.getInstance(SIGNATURE_ALGO);
+		return signature;
+	}
+
+	/**
+	 * @param keysize size of the keys in bits
+	 * @return a generator for AES keys, initialised with the shared random source
+	 */
+	public KeyGenerator secretKeys(int keysize) throws NoSuchAlgorithmException {
+		if (secretKeys == null) secretKeys = KeyGenerator.getInstance(SECRET_KEY_ALGORITHM);
+		secretKeys.init(keysize, random);
+		return secretKeys;
+	}
+
+	/**
+	 * Fills the array with random bytes from the shared source.
+	 * Small requests are served from a prefetched block, larger ones directly.
+	 * @param bytes
+	 */
+	public static void nextBytes(byte[] bytes) {
+		if (bytes.length > RANDOM_BLOCK / 4) {
+			random.nextBytes(bytes);
+			return;
+		}
+
+		synchronized (randomBlock) {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (randomPosition == RANDOM_BLOCK) {
+					random.nextBytes(randomBlock);
+					randomPosition = 0;
+				}
+
+				int n = Math.min(bytes.length - offset, RANDOM_BLOCK - randomPosition);
+				System.arraycopy(randomBlock, randomPosition, bytes, offset, n);
+				// handed out bytes are never handed out again
+				Arrays.fill(randomBlock, randomPosition, randomPosition + n, (byte) 0);
+				randomPosition += n;
+				offset += n;
+			}
+		}
+	}
+
+	/**
+	 * @return the shared random source
+	 */
+	public static SecureRandom random() {
+		return random;
+	}
+}
@@ -0,0 +1,191 @@
+package util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs expensive asymmetric crypto operations on a fixed number of threads.
+ *
+ * Handlers hand off RSA decryption and signature checks and wait for the
+ * result, so logins compete for these threads only and not for the threads
+ * serving bids. At most queueSize operations wait; further ones are rejected
+ * and the caller decides whether to refuse or run them itself.
+ */
+public class CryptoExecutor {
+	private final ThreadPoolExecutor executor;
+	private final int threads;
+	private final ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected  = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong runNanos  = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * @param threads number of crypto threads
+	 * @param queueSize operations waiting at most
+	 */
+	public CryptoExecutor(int threads, int queueSize) {
+		this.threads = threads;
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Runnable marked = new Runnable() {
+					public void run() {
+						worker.set(Boolean.TRUE);
+						r.run();
+					}
+				};
+				Thread t = new Thread(marked, "crypto-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+										  new ArrayBlockingQueue<Runnable>(queueSize), factory);
+	}
+
+	/**
+	 * @param task
+	 * @return the pending result of the task
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(new Timed<T>(task));
+
+		// a crypto thread waiting for another one could starve the pool
+		if (Boolean.TRUE.equals(worker.get())) {
+			future.run();
+			return future;
+		}
+
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * Runs the task on a crypto thread and waits for it
+	 * @param task
+	 * @return the result of the task
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public <T> T call(Callable<T> task) {
+		return await(submit(task));
+	}
+
+	/**
+	 * Waits for a submitted task, ignoring interrupts
+	 * @param future
+	 * @return the result of the task
+	 */
+	public static <T> T await(Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return operations waiting for a thread
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return average time an operation waited for a thread, in microseconds
+	 */
+	public long getAverageWait() {
+		long n = completed.get();
+		return (n == 0) ? 0 : waitNanos.get() / n / 1000;
+	}
+
+	/**
+	 * @return longest time an operation waited for a thread, in microseconds
+	 */
+	public long getMaxWait() {
+		return maxWaitNanos.get() / 1000;
+	}
+
+	/**
+	 * @return average run time of an operation, in microseconds
+	 */
+	public long getAverageRun() {
+		long n = completed.get();
+		return (n == 0) ? 0 : runNanos.get() / n / 1000;
+	}
+
+	/**
+	 * Records queue and run time of a task
+	 */
+	private class Timed<T> implements Callable<T> {
+		private final Callable<T> task;
+		private final long submitted = System.nanoTime();
+
+		Timed(Callable<T> task) {
+			this.task = task;
+		}
+
+		public T call() throws Exception {
+			long start = System.nanoTime();
+			long wait = start - submitted;
+
+			long max;
+			while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) {}
+
+			try {
+				return task.call();
+			} finally {
+				runNanos.addAndGet(System.nanoTime() - start);
+				waitNanos.addAndGet(wait);
+				completed.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Delivers calls to one remote server on threads of its own.
+ *
+ * Callers hand off a delivery and go on, so a slow or unreachable server
+ * holds up its own queue only. At most queueSize deliveries wait; further
+ * ones fail right away. A delivery that throws is tried again after a delay
+ * doubling with every attempt, scheduled on a timer instead of blocking a
+ * thread, until it succeeds or has been retried the given number of times.
+ * Either way its outcome is passed to it exactly once.
+ */
+public class DeliveryQueue {
+	private static Logger logger = Logger.getLogger("DeliveryQueue");
+
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final TimingWheel timer;
+	private final int retries;
+	private final long retryMillis;
+
+	private final AtomicInteger retrying = new AtomicInteger();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong failed    = new AtomicLong();
+	private final AtomicLong rejected  = new AtomicLong();
+	private final AtomicLong retried   = new AtomicLong();
+
+	/**
+	 * @param name used for thread names and the log
+	 * @param threads number of delivering threads
+	 * @param queueSize deliveries waiting at most
+	 * @param retries attempts after the first one
+	 * @param retryMillis delay before the first retry
+	 * @param timer schedules retries
+	 */
+	public DeliveryQueue(final String name, int threads, int queueSize, int retries, long retryMillis, TimingWheel timer) {
+		this.name = name;
+		this.timer = timer;
+		this.retries = Math.max(retries, 0);
+		this.retryMillis = Math.max(retryMillis, 1);
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		threads = Math.max(threads, 1);
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+										  new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), factory);
+	}
+
+	/**
+	 * Queues a delivery
+	 * @param delivery
+	 * @return false, if the queue is full; the delivery has failed then
+	 */
+	public boolean submit(Delivery delivery) {
+		try {
+			executor.execute(new Attempt(delivery));
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			logger.warning(String.format("%s: queue full, dropping %s", name, delivery));
+			finish(delivery, false);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops taking deliveries, queued ones are still tried once
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return deliveries waiting for a thread
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return failed deliveries waiting to be tried again
+	 */
+	public int getRetrying() {
+		return retrying.get();
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return deliveries given up, including rejected ones
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return deliveries dropped because the queue was full
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return attempts after the first one
+	 */
+	public long getRetried() {
+		return retried.get();
+	}
+
+	private void finish(Delivery delivery, boolean success) {
+		(success ? delivered : failed).incrementAndGet();
+		try {
+			delivery.done(success);
+		} catch (RuntimeException e) {
+			logger.warning(String.format("%s: recording %s failed: %s", name, delivery, e.toString()));
+		}
+	}
+
+	/**
+	 * One attempt of a delivery, scheduling the next one if it fails
+	 */
+	private class Attempt implements Runnable {
+		private final Delivery delivery;
+
+		Attempt(Delivery delivery) {
+			this.delivery = delivery;
+		}
+
+		public void run() {
+			try {
+				delivery.deliver();
+			} catch (Exception e) {
+				int attempt = ++delivery.attempts;
+				if (attempt > retries) {
+					logger.warning(String.format("%s: giving up %s after %d attempts: %s", name, delivery, attempt, e.toString()));
+					finish(delivery, false);
+					return;
+				}
+
+				long delay = retryMillis << Math.min(attempt - 1, 16);
+				logger.info(String.format("%s: %s failed, retrying in %d ms: %s", name, delivery, delay, e.toString()));
+				retried.incrementAndGet();
+				retrying.incrementAndGet();
+				timer.schedule(new Runnable() {
+					public void run() {
+						retrying.decrementAndGet();
+						submit(delivery);
+					}
+				}, System.currentTimeMillis() + delay);
+				return;
+			}
+			finish(delivery, true);
+		}
+	}
+
+	/**
+	 * A call to the remote server, attempted one at a time
+	 */
+	public static abstract class Delivery {
+		private int attempts; /** Failed attempts so far */
+
+		/**
+		 * @throws Exception if the call failed and may be tried again
+		 */
+		protected abstract void deliver() throws Exception;
+
+		/**
+		 * Receives the outcome, once
+		 * @param success false, if the delivery was given up
+		 */
+		protected abstract void done(boolean success);
+	}
+}
@@ -0,0 +1,69 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors connection handlers run on.
+ *
+ * Supported modes:
+ *   pool    - a cached pool of platform threads
+ *   virtual - one virtual thread per handler (needs Java 21 or newer,
+ *             falls back to the pool otherwise)
+ */
+public final class HandlerExecutors {
+	public static final String MODE_POOL    = "pool";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	private static final Logger logger = Logger.getLogger("HandlerExecutors");
+
+	private HandlerExecutors() {}
+
+	/**
+	 * @param mode one of MODE_POOL or MODE_VIRTUAL
+	 * @return a new executor
+	 */
+	public static ExecutorService newExecutor(String mode) {
+		if (MODE_VIRTUAL.equals(mode)) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor != null) return executor;
+
+			logger.log(Level.WARNING, "Virtual threads are not supported by this JVM, using a thread pool");
+		} else if (!MODE_POOL.equals(mode)) {
+			logger.log(Level.WARNING, "Unknown executor mode '" + mode + "', using a thread pool");
+		}
+
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * @return true, if the running JVM supports virtual threads
+	 */
+	public static boolean virtualThreadsSupported() {
+		return findVirtualFactory() != null;
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		Method factory = findVirtualFactory();
+		if (factory == null) return null;
+
+		try {
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Could not create virtual thread executor: " + e);
+			return null;
+		}
+	}
+
+	// looked up reflectively, so the sources still compile for older JVMs
+	private static Method findVirtualFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.Key;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the public keys and shared HMAC keys of clients in memory.
+ *
+ * Keys are read from the key directory the first time they are needed.
+ * At most maxEntries keys of each kind are kept, the least recently used one
+ * is evicted first, and keys not used within the ttl are dropped.
+ * A cached key is reloaded if the modification time of its file changed, the
+ * file is checked at most once per check interval.
+ */
+public class KeyStoreCache {
+	public static final String PUBLIC_KEY_SUFFIX = ".pub.pem";
+	public static final String HMAC_KEY_SUFFIX   = ".key";
+
+	private final Cache<PublicKey> publicKeys;
+	private final Cache<Key> hmacKeys;
+
+	private final AtomicLong hits  = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+
+	/**
+	 * @param dir directory holding the key files, including the trailing separator
+	 * @param maxEntries keys of each kind kept at most
+	 * @param ttlMillis keys not used for this long are dropped, 0 to keep them
+	 * @param checkMillis minimum time between two checks of a key file
+	 */
+	public KeyStoreCache(String dir, int maxEntries, long ttlMillis, long checkMillis) {
+		publicKeys = new Cache<PublicKey>(dir, PUBLIC_KEY_SUFFIX, maxEntries, ttlMillis, checkMillis) {
+			protected PublicKey load(String path) throws IOException {
+				return SecurityUtils.getPublicKey(path);
+			}
+		};
+		hmacKeys = new Cache<Key>(dir, HMAC_KEY_SUFFIX, maxEntries, ttlMillis, checkMillis) {
+			protected Key load(String path) throws IOException {
+				return SecurityUtils.getClientKey(path);
+			}
+		};
+	}
+
+	/**
+	 * @param user name of the user
+	 * @return the public key of the user
+	 * @throws IOException if the key file could not be read
+	 */
+	public PublicKey getPublicKey(String user) throws IOException {
+		return publicKeys.get(user);
+	}
+
+	/**
+	 * @param user name of the user
+	 * @return the key shared with the user for HMACs
+	 * @throws IOException if the key file could not be read
+	 */
+	public Key getHmacKey(String user) throws IOException {
+		return hmacKeys.get(user);
+	}
+
+	/**
+	 * Drops every cached key, they are read again when needed
+	 */
+	public void clear() {
+		publicKeys.clear();
+		hmacKeys.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of key files read and parsed
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public int size() {
+		return publicKeys.size() + hmacKeys.size();
+	}
+
+
+	private static class Entry<K> {
+		final K key;
+		final long modified;
+		long checked;
+		long used;
+
+		Entry(K key, long modified, long now) {
+			this.key = key;
+			this.modified = modified;
+			this.checked = now;
+			this.used = now;
+		}
+	}
+
+	/**
+	 * LRU cache of one kind of key, guarded by its own monitor.
+	 * Files are read and parsed without holding the monitor.
+	 */
+	private abstract class Cache<K> {
+		private final String dir;
+		private final String suffix;
+		private final int maxEntries;
+		private final long ttl;
+		private final long checkInterval;
+		private final LinkedHashMap<String, Entry<K>> entries;
+
+		Cache(String dir, String suffix, final int maxEntries, long ttl, long checkInterval) {
+			this.dir = dir;
+			this.suffix = suffix;
+			this.maxEntries = maxEntries;
+			this.ttl = ttl;
+			this.checkInterval = checkInterval;
+
+			entries = new LinkedHashMap<String, Entry<K>>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry<K>> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		protected abstract K load(String path) throws IOException;
+
+		K get(String name) throws IOException {
+			long now = System.currentTimeMillis();
+			File file = new File(dir + name + suffix);
+
+			synchronized (this) {
+				Entry<K> e = entries.get(name);
+				if (e != null && ttl > 0 && now - e.used > ttl) {
+					entries.remove(name);
+					e = null;
+				}
+
+				if (e != null && now - e.checked < checkInterval) {
+					e.used = now;
+					hits.incrementAndGet();
+					return e.key;
+				}
+
+				if (e != null && file.lastModified() == e.modified) {
+					e.checked = now;
+					e.used = now;
+					hits.incrementAndGet();
+					return e.key;
+				}
+
+				if (e != null) entries.remove(name);
+				if (ttl > 0 && entries.size() >= maxEntries) expire(now);
+			}
+
+			long modified = file.lastModified();
+			if (modified == 0) throw new FileNotFoundException(file.getPath());
+
+			K key = load(file.getPath());
+			loads.incrementAndGet();
+
+			synchronized (this) {
+				entries.put(name, new Entry<K>(key, modified, now));
+			}
+			return key;
+		}
+
+		private void expire(long now) {
+			Iterator<Entry<K>> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().used > ttl) it.remove();
+			}
+		}
+
+		synchronized void clear() {
+			entries.clear();
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+}
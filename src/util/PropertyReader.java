@@ -27,4 +27,37 @@ public final class PropertyReader {
 		}
 		return props;
 	}
+	
+	/**
+	 * @param props properties, may be null
+	 * @param name name of the property
+	 * @param defaultValue used if the property is missing or not a number
+	 * @return the value of the property as an integer
+	 */
+	public static int getInt(Properties props, String name, int defaultValue) {
+		if (props == null) return defaultValue;
+		
+		String value = props.getProperty(name);
+		if (value == null) return defaultValue;
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.log(Level.WARNING, "Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * @param props properties, may be null
+	 * @param name name of the property
+	 * @param defaultValue used if the property is missing
+	 * @return the trimmed value of the property
+	 */
+	public static String getString(Properties props, String name, String defaultValue) {
+		if (props == null) return defaultValue;
+		
+		String value = props.getProperty(name);
+		return (value == null) ? defaultValue : value.trim();
+	}
 }
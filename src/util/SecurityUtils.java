@@ -9,7 +9,6 @@ import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.logging.Level;
@@ -29,9 +28,7 @@ import org.bouncycastle.openssl.PasswordFinder;
 import org.bouncycastle.util.encoders.Hex;
 
 public class SecurityUtils {
-	private static final String CIPHER = "RSA/NONE/OAEPWithSHA256AndMGF1Padding";
-	private static final String SIGNATURE_ALGO = "SHA512withRSA";
-	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final String HMAC_ALGORITHM = CryptoContext.HMAC_ALGORITHM;
 	
 	private static final Logger logger = Logger.getLogger(SecurityUtils.class.getSimpleName());
 	
@@ -41,8 +38,7 @@ public class SecurityUtils {
 	 */
 	public static byte[] generateNumber(int size) {
 		byte[] number = new byte[size];
-		SecureRandom sr = new SecureRandom();
-		sr.nextBytes(number);
+		CryptoContext.nextBytes(number);
 		
 		return number;
 	}
@@ -68,11 +64,21 @@ public class SecurityUtils {
 	}
 	
 	public static byte[] hmacSHA256(byte[] message, Key key) {
+		return hmacSHA256(key, message);
+	}
+	
+	/**
+	 * Computes the HMAC of the concatenated parts, without copying them together
+	 * @param key
+	 * @param parts
+	 * @return the HMAC, null on error
+	 */
+	public static byte[] hmacSHA256(Key key, byte[]... parts) {
 		Mac hMac;
 		try {
-			hMac = Mac.getInstance(HMAC_ALGORITHM);
+			hMac = CryptoContext.get().hmac();
 			hMac.init(key);
-			hMac.update(message);
+			for (byte[] part : parts) hMac.update(part);
 			return hMac.doFinal();
 		} catch (NoSuchAlgorithmException e) {
 			logger.log(Level.SEVERE, "No such algorithm: " + e.getMessage());
@@ -83,9 +89,24 @@ public class SecurityUtils {
 		return null;
 	}
 	
+	/**
+	 * Derives key material from a shared secret, HMAC-SHA256 over the label and the context
+	 * @param secret
+	 * @param label distinguishes keys derived from the same secret and context
+	 * @param context
+	 * @return 32 bytes of key material, null on error
+	 */
+	public static byte[] deriveKey(byte[] secret, String label, byte[]... context) {
+		byte[][] parts = new byte[context.length + 1][];
+		parts[0] = label.getBytes();
+		System.arraycopy(context, 0, parts, 1, context.length);
+		
+		return hmacSHA256(new SecretKeySpec(secret, HMAC_ALGORITHM), parts);
+	}
+	
 	private static byte[] transformRSA(byte[] message, Key key, int mode) {
 		try {
-			Cipher crypt = Cipher.getInstance(CIPHER);
+			Cipher crypt = CryptoContext.get().rsa();
 			crypt.init(mode, key);
 			return crypt.doFinal(message);
 		} catch (NoSuchAlgorithmException e) {
@@ -95,9 +116,10 @@ public class SecurityUtils {
 		} catch (InvalidKeyException e) {
 			logger.log(Level.SEVERE, "Invalid key: " + e.getMessage());
 		} catch (IllegalBlockSizeException e) {
-			logger.log(Level.SEVERE, "Illegal block size: " + e.getMessage());
+			// caused by the input, not by us
+			logger.log(Level.FINE, "Illegal block size: " + e.getMessage());
 		} catch (BadPaddingException e) {
-			logger.log(Level.SEVERE, "Bad padding: " + e.getMessage());
+			logger.log(Level.FINE, "Bad padding: " + e.getMessage());
 		}
 		
 		return null;
@@ -106,7 +128,7 @@ public class SecurityUtils {
 	public static byte[] sign(byte[] message, PrivateKey key) {
 		Signature s;
 		try {
-			s = Signature.getInstance(SIGNATURE_ALGO);
+			s = CryptoContext.get().signature();
 			s.initSign(key);
 			s.update(message);
 			return s.sign();
@@ -124,7 +146,7 @@ public class SecurityUtils {
 	public static boolean verify(byte[] message, byte[] signature, PublicKey key) {
 		Signature s;
 		try {
-			s = Signature.getInstance(SIGNATURE_ALGO);
+			s = CryptoContext.get().signature();
 			s.initVerify(key);
 			s.update(message);
 			return s.verify(signature);
@@ -169,8 +191,7 @@ public class SecurityUtils {
 	public static SecretKey getSecretKey(int keysize) {
 		try {
 			
-			KeyGenerator generator = KeyGenerator.getInstance("AES");
-			generator.init(keysize);
+			KeyGenerator generator = CryptoContext.get().secretKeys(keysize);
 			return generator.generateKey();
 			
 		} catch (NoSuchAlgorithmException e) {
@@ -183,9 +204,18 @@ public class SecurityUtils {
 	public static Key getClientKey(String path) throws IOException {
 		byte[] keyBytes = new byte[1024];
 		FileInputStream fis = new FileInputStream(path);
-		fis.read(keyBytes);
-		fis.close();
-		byte[] input = Hex.decode(keyBytes);
+		int length = 0;
+		try {
+			int n;
+			while (length < keyBytes.length && (n = fis.read(keyBytes, length, keyBytes.length - length)) > 0) {
+				length += n;
+			}
+		} finally {
+			fis.close();
+		}
+		// decode only what was read, a trailing newline is ignored
+		while (length > 0 && Character.isWhitespace(keyBytes[length - 1])) length--;
+		byte[] input = Hex.decode(new String(keyBytes, 0, length));
 		return new SecretKeySpec(input, HMAC_ALGORITHM);
 	}
 }
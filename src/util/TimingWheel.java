@@ -0,0 +1,259 @@
+package util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks at a deadline, using a hierarchical timing wheel.
+ *
+ * Time is divided into ticks. The first wheel has one bucket per tick, each
+ * further wheel has buckets as long as a whole turn of the wheel below. A task
+ * is put into the bucket of the lowest wheel that reaches its deadline and
+ * moves down a wheel each time the wheel below completes a turn, until it
+ * expires in the first wheel. Scheduling and cancelling take constant time,
+ * however many tasks are waiting.
+ *
+ * A single thread advances the wheels; expired tasks are run by the executor,
+ * so a slow task does not delay the others. Tasks run at most one tick late,
+ * unless the executor falls behind.
+ */
+public class TimingWheel {
+	private static final Logger logger = Logger.getLogger(TimingWheel.class.getSimpleName());
+
+	private final long tickMillis;
+	private final int bits;
+	private final int mask;
+	private final Timeout[][] wheels; /** Heads of the bucket lists, per wheel */
+	private final Executor executor;
+
+	private final long start;
+	private long currentTick;
+	private int size;
+	private Thread ticker;
+	private volatile boolean running;
+
+	/**
+	 * @param tickMillis resolution of the deadlines
+	 * @param wheelSize buckets per wheel, rounded up to a power of two
+	 * @param levels number of wheels, deadlines beyond tick * wheelSize^levels wait in the last one
+	 * @param executor runs expired tasks
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, int levels, Executor executor) {
+		this.tickMillis = tickMillis;
+		this.bits = 32 - Integer.numberOfLeadingZeros(Math.max(wheelSize, 2) - 1);
+		this.mask = (1 << bits) - 1;
+		this.wheels = new Timeout[levels][1 << bits];
+		this.executor = executor;
+		this.start = System.currentTimeMillis();
+	}
+
+	/**
+	 * Starts the thread advancing the wheels
+	 */
+	public synchronized void start() {
+		if (running) return;
+
+		running = true;
+		ticker = new Thread(new Runnable() {
+			public void run() {
+				tickLoop();
+			}
+		}, "timing-wheel");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Stops advancing the wheels, waiting tasks are not run anymore
+	 */
+	public void stop() {
+		running = false;
+
+		Thread t = ticker;
+		if (t != null) t.interrupt();
+	}
+
+	/**
+	 * @param task
+	 * @param deadline time to run the task at, in milliseconds since the epoch
+	 * @return handle to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long deadline) {
+		Timeout timeout = new Timeout(this, task, deadline);
+		long ticks = toTicks(deadline);
+
+		synchronized (this) {
+			timeout.ticks = ticks;
+			if (ticks <= currentTick) {
+				// already due
+				run(timeout);
+				return timeout;
+			}
+			insert(timeout);
+			size++;
+		}
+		return timeout;
+	}
+
+	/**
+	 * @return number of tasks waiting for their deadline
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private long toTicks(long millis) {
+		// rounded up, so tasks never run early
+		return (millis - start + tickMillis - 1) / tickMillis;
+	}
+
+	/**
+	 * Puts a timeout into the bucket of the lowest wheel reaching its deadline
+	 */
+	private void insert(Timeout timeout) {
+		long delta = timeout.ticks - currentTick;
+		long ticks = timeout.ticks;
+
+		int level = 0;
+		while (level < wheels.length - 1 && delta >= (1L << (bits * (level + 1)))) level++;
+
+		// beyond the last wheel, wait there for as long as it reaches
+		long reach = 1L << (bits * (level + 1));
+		if (delta >= reach) ticks = currentTick + reach - 1;
+
+		int index = (int) ((ticks >>> (bits * level)) & mask);
+		Timeout[] wheel = wheels[level];
+
+		timeout.level = level;
+		timeout.index = index;
+		timeout.prev = null;
+		timeout.next = wheel[index];
+		if (wheel[index] != null) wheel[index].prev = timeout;
+		wheel[index] = timeout;
+	}
+
+	private void remove(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			wheels[timeout.level][timeout.index] = timeout.next;
+		}
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.level = -1;
+	}
+
+	synchronized boolean cancel(Timeout timeout) {
+		if (timeout.level < 0) return false;
+
+		remove(timeout);
+		size--;
+		return true;
+	}
+
+	private void tickLoop() {
+		while (running) {
+			long now = System.currentTimeMillis();
+			long target = (now - start) / tickMillis;
+
+			synchronized (this) {
+				while (currentTick < target) advance();
+			}
+
+			long next = start + (target + 1) * tickMillis;
+			try {
+				Thread.sleep(Math.max(1, next - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				// stop() or spurious, checked by the loop
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next tick: cascades the higher wheels whose bucket is due,
+	 * then runs the tasks in the bucket of the first wheel
+	 */
+	private void advance() {
+		currentTick++;
+
+		for (int level = 1; level < wheels.length; level++) {
+			// the wheel below completed a turn
+			if ((currentTick & ((1L << (bits * level)) - 1)) != 0) break;
+
+			int index = (int) ((currentTick >>> (bits * level)) & mask);
+			Timeout head = wheels[level][index];
+			wheels[level][index] = null;
+			expireOrMove(head);
+		}
+
+		int index = (int) (currentTick & mask);
+		Timeout head = wheels[0][index];
+		wheels[0][index] = null;
+		expireOrMove(head);
+	}
+
+	/**
+	 * Runs the due timeouts of a bucket list, moves the others down a wheel
+	 */
+	private void expireOrMove(Timeout t) {
+		while (t != null) {
+			Timeout next = t.next;
+			t.prev = null;
+			t.next = null;
+			if (t.ticks <= currentTick) {
+				size--;
+				run(t);
+			} else {
+				insert(t);
+			}
+			t = next;
+		}
+	}
+
+	private void run(Timeout timeout) {
+		timeout.level = -1;
+		try {
+			executor.execute(timeout.task);
+		} catch (RejectedExecutionException e) {
+			logger.log(Level.WARNING, "Could not run expired task: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A scheduled task
+	 */
+	public static class Timeout {
+		private final TimingWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+
+		private long ticks;
+		private int level = -1; /** -1 once run or cancelled */
+		private int index;
+		private Timeout prev, next;
+
+		private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return deadline in milliseconds since the epoch
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * @return true, if the task was still waiting and will not run
+		 */
+		public boolean cancel() {
+			return wheel.cancel(this);
+		}
+	}
+}